@@ -30,15 +30,25 @@ public interface Constants {
 
     //
     public static final String WICKET_ID = "wicket:id";
+    public static final String WICKET_EXTEND = "wicket:extend";
+    public static final String WICKET_CHILD = "wicket:child";
+    public static final String WICKET_FRAGMENT_TAG = "wicket:fragment";
+    public static final String WICKET_BORDER_TAG = "wicket:border";
+    public static final String WICKET_BODY = "wicket:body"; // also wicketId of the body of a border in class hierarchies
 
     //
     public static final char HIERARCHYSEPARATOR = '#';
+    public static final char FRAGMENTPREFIX = '~'; // wicketId of a fragment in hierarchies ex '#~markupId#name'
+    public static final long COMPLETION_HIERARCHY_TIME_BUDGET = 500; // ms, max time to build a class hierarchy while completing
 
     // wicket classes
     public static final String WICKET_COMPONENT = "org.apache.wicket.Component";
+    public static final String WICKET_MARKUPCONTAINER = "org.apache.wicket.MarkupContainer";
     public static final String WICKET_PAGE = "org.apache.wicket.Page";
     public static final String WICKET_PANEL = "org.apache.wicket.markup.html.panel.Panel";
     public static final String WICKET_FORMCOMPONENTPANEL = "org.apache.wicket.markup.html.form.FormComponentPanel";
+    public static final String WICKET_FRAGMENT = "org.apache.wicket.markup.html.panel.Fragment";
+    public static final String WICKET_BORDER = "org.apache.wicket.markup.html.border.Border";
     public static final String WICKET_IMODEL = "org.apache.wicket.model.IModel";
     public static final String WICKET_PROPERTYMODEL = "org.apache.wicket.model.PropertyModel";
     public static final String WICKET_RESOURCEMODEL = "org.apache.wicket.model.ResourceModel";
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2010 The WicketForge-Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wicketforge;
+
+import com.intellij.ProjectTopics;
+import com.intellij.facet.Facet;
+import com.intellij.facet.FacetManager;
+import com.intellij.facet.FacetManagerAdapter;
+import com.intellij.openapi.components.AbstractProjectComponent;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleUtil;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.ModificationTracker;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.*;
+import com.intellij.psi.*;
+import com.intellij.util.SmartList;
+import com.intellij.util.messages.MessageBusConnection;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the resolution class -> resource (markup/properties), class -> all markup variations and markup -> class.
+ * <p/>
+ * Resolving needs the package, the alternate resource paths of the facet and a scan of all package directories, so
+ * results are kept until java/markup/properties files or directories of the project content get
+ * created/deleted/moved/renamed, roots change or a facet configuration changes.
+ */
+public class WicketForgeResourceCache extends AbstractProjectComponent implements ModificationTracker {
+    private static final Object NULL = new Object(); // marker for 'resolved but not found'
+
+    private final Map<String, Object> resourceFiles = new ConcurrentHashMap<String, Object>(); // Key: module:package/resourceName -> VirtualFile or NULL
+    private final Map<String, VirtualFile[]> markupFiles = new ConcurrentHashMap<String, VirtualFile[]>(); // Key: module:package/resourceName -> markup files (default first)
+    private final Map<VirtualFile, Object> markupClassNames = new ConcurrentHashMap<VirtualFile, Object>(); // Key: markup file -> class name or NULL
+    private final AtomicLong modificationCount = new AtomicLong();
+    private boolean clearAfterEvents; // set by a delete/move before the event (only accessed inside write action)
+
+    public WicketForgeResourceCache(Project project) {
+        super(project);
+    }
+
+    @NotNull
+    public static WicketForgeResourceCache getInstance(@NotNull Project project) {
+        return project.getComponent(WicketForgeResourceCache.class);
+    }
+
+    @Override
+    public void initComponent() {
+        MessageBusConnection connection = myProject.getMessageBus().connect(myProject);
+        connection.subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            public void before(List<? extends VFileEvent> events) {
+                // deleted/moved files are only part of the content before the event
+                for (VFileEvent event : events) {
+                    if (event instanceof VFileDeleteEvent || event instanceof VFileMoveEvent) {
+                        VirtualFile file = event.getFile();
+                        if (file != null && isResource(file.getName(), file.isDirectory()) && isInContent(file)) {
+                            clearAfterEvents = true;
+                            return;
+                        }
+                    }
+                }
+            }
+
+            public void after(List<? extends VFileEvent> events) {
+                boolean clear = clearAfterEvents;
+                clearAfterEvents = false;
+                // content changes does not affect resolution, but file create/delete/move/rename does
+                for (int i = 0; !clear && i < events.size(); i++) {
+                    VFileEvent event = events.get(i);
+                    if (event instanceof VFileCreateEvent) {
+                        VFileCreateEvent createEvent = (VFileCreateEvent) event;
+                        clear = isResource(createEvent.getChildName(), createEvent.isDirectory()) && isInContent(createEvent.getParent());
+                    } else if (event instanceof VFileCopyEvent) {
+                        VFileCopyEvent copyEvent = (VFileCopyEvent) event;
+                        clear = isResource(copyEvent.getNewChildName(), copyEvent.getFile().isDirectory()) && isInContent(copyEvent.getNewParent());
+                    } else if (event instanceof VFileMoveEvent) {
+                        VirtualFile file = event.getFile();
+                        clear = file != null && isResource(file.getName(), file.isDirectory()) && isInContent(file);
+                    } else if (event instanceof VFilePropertyChangeEvent && VirtualFile.PROP_NAME.equals(((VFilePropertyChangeEvent) event).getPropertyName())) {
+                        VFilePropertyChangeEvent propertyEvent = (VFilePropertyChangeEvent) event;
+                        VirtualFile file = propertyEvent.getFile();
+                        clear = file != null && (isResource(String.valueOf(propertyEvent.getOldValue()), file.isDirectory()) ||
+                                isResource(String.valueOf(propertyEvent.getNewValue()), file.isDirectory())) && isInContent(file);
+                    }
+                }
+                if (clear) {
+                    clear();
+                }
+            }
+        });
+        connection.subscribe(ProjectTopics.PROJECT_ROOTS, new ModuleRootListener() {
+            public void beforeRootsChange(ModuleRootEvent event) {
+            }
+
+            public void rootsChanged(ModuleRootEvent event) {
+                clear();
+            }
+        });
+        connection.subscribe(FacetManager.FACETS_TOPIC, new FacetManagerAdapter() {
+            @Override
+            public void facetAdded(@NotNull Facet facet) {
+                clear();
+            }
+
+            @Override
+            public void facetRemoved(@NotNull Facet facet) {
+                clear();
+            }
+
+            @Override
+            public void facetConfigurationChanged(@NotNull Facet facet) {
+                clear();
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public String getComponentName() {
+        return "WicketForgeResourceCache";
+    }
+
+    public void clear() {
+        resourceFiles.clear();
+        markupFiles.clear();
+        markupClassNames.clear();
+        modificationCount.incrementAndGet();
+    }
+
+    /**
+     * @return count that changes every time the cache is cleared (resolution of class/markup could have changed)
+     */
+    public long getModificationCount() {
+        return modificationCount.get();
+    }
+
+    /**
+     * @return true if a file with this name could change the resolution (directories: package/alternate resource path)
+     */
+    private static boolean isResource(@NotNull String name, boolean directory) {
+        if (directory) {
+            return true;
+        }
+        String extension = name.substring(name.lastIndexOf('.') + 1);
+        return Constants.HTML.equals(extension) || Constants.PROPERTIES.equals(extension) || Constants.JAVA.equals(extension);
+    }
+
+    /**
+     * @return true if file is part of a module content or source root (not ex excluded output directories)
+     */
+    private boolean isInContent(@Nullable VirtualFile file) {
+        if (file == null || !file.isValid()) {
+            return false;
+        }
+        ProjectFileIndex fileIndex = ProjectRootManager.getInstance(myProject).getFileIndex();
+        return fileIndex.isInContent(file) || fileIndex.isInSourceContent(file);
+    }
+
+    /**
+     * @param psiClass      the PsiClass
+     * @param resourceName  resourceName to find
+     * @return              resource file from same package like PsiClass or null if no such file exists.
+     */
+    @Nullable
+    public PsiFile getResourceFile(@NotNull PsiClass psiClass, @NotNull String resourceName) {
+        String key = getKey(psiClass, resourceName);
+        if (key == null) {
+            return null;
+        }
+
+        Object cached = resourceFiles.get(key);
+        if (cached instanceof VirtualFile) {
+            VirtualFile virtualFile = (VirtualFile) cached;
+            if (virtualFile.isValid()) {
+                PsiFile file = PsiManager.getInstance(myProject).findFile(virtualFile);
+                if (file != null) {
+                    return file;
+                }
+            }
+        } else if (cached == NULL) {
+            return null;
+        }
+
+        PsiFile file = WicketForgeUtil.findResourceFile(psiClass, resourceName);
+        VirtualFile virtualFile = file == null ? null : file.getVirtualFile();
+        if (file == null) {
+            resourceFiles.put(key, NULL);
+        } else if (virtualFile != null) {
+            resourceFiles.put(key, virtualFile);
+        }
+        return file;
+    }
+
+    /**
+     * @param psiClass  the PsiClass
+     * @return          all markup files (default markup first) of the PsiClass, see {@link WicketForgeUtil#getMarkupFiles(PsiClass)}
+     */
+    @NotNull
+    public List<PsiFile> getMarkupFiles(@NotNull PsiClass psiClass) {
+        String key = getKey(psiClass, WicketForgeUtil.getMarkupFileName(psiClass));
+        if (key == null) {
+            return Collections.emptyList();
+        }
+
+        VirtualFile[] cached = markupFiles.get(key);
+        if (cached != null) {
+            List<PsiFile> result = new SmartList<PsiFile>();
+            PsiManager psiManager = PsiManager.getInstance(myProject);
+            for (VirtualFile virtualFile : cached) {
+                PsiFile file = virtualFile.isValid() ? psiManager.findFile(virtualFile) : null;
+                if (file == null) {
+                    result = null; // outdated
+                    break;
+                }
+                result.add(file);
+            }
+            if (result != null) {
+                return result;
+            }
+        }
+
+        List<PsiFile> result = WicketForgeUtil.findMarkupFiles(psiClass);
+        List<VirtualFile> virtualFiles = new ArrayList<VirtualFile>(result.size());
+        for (PsiFile file : result) {
+            VirtualFile virtualFile = file.getVirtualFile();
+            if (virtualFile == null) {
+                return result; // non physical, dont cache
+            }
+            virtualFiles.add(virtualFile);
+        }
+        markupFiles.put(key, virtualFiles.toArray(new VirtualFile[virtualFiles.size()]));
+        return result;
+    }
+
+    /**
+     * @param psiFile the markup file
+     * @return the associated PsiClass or null if no such class exists.
+     */
+    @Nullable
+    public PsiClass getMarkupClass(@NotNull PsiFile psiFile) {
+        VirtualFile virtualFile = psiFile.getVirtualFile();
+        Object cached = virtualFile == null ? null : markupClassNames.get(virtualFile);
+        if (cached == null) {
+            String className = WicketForgeUtil.findMarkupClassName(psiFile);
+            // variation/style/locale ex 'MyPage_style_de' -> 'MyPage_style' -> 'MyPage' until a class exists
+            String name = className;
+            while (name != null && WicketForgeUtil.findMarkupClass(name, psiFile) == null) {
+                int index = name.lastIndexOf('_');
+                name = index > name.lastIndexOf('.') + 1 ? name.substring(0, index) : null;
+            }
+            if (name != null) {
+                className = name;
+            }
+            cached = className == null ? NULL : className;
+            if (virtualFile != null) {
+                markupClassNames.put(virtualFile, cached);
+            }
+        }
+        return cached == NULL ? null : WicketForgeUtil.findMarkupClass((String) cached, psiFile);
+    }
+
+    /**
+     * @return key ex 'module:package/resourceName' or null if PsiClass is not part of a java file
+     */
+    @Nullable
+    private static String getKey(@NotNull PsiClass psiClass, @NotNull String resourceName) {
+        PsiFile psiFile = psiClass.getContainingFile();
+        if (!(psiFile instanceof PsiJavaFile)) {
+            return null;
+        }
+        Module module = ModuleUtil.findModuleForPsiElement(psiClass);
+        return new StringBuilder(module == null ? "" : module.getName()).append(':')
+                .append(((PsiJavaFile) psiFile).getPackageName()).append('/').append(resourceName).toString();
+    }
+}
@@ -30,6 +30,7 @@ import com.intellij.openapi.module.ModuleUtil;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ModuleRootManager;
 import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -40,6 +41,10 @@ import com.intellij.psi.impl.compiled.ClsClassImpl;
 import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.psi.search.ProjectAndLibrariesScope;
 import com.intellij.psi.search.searches.ClassInheritorsSearch;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.refactoring.PackageWrapper;
 import com.intellij.refactoring.move.moveClassesOrPackages.MoveClassesOrPackagesUtil;
@@ -54,15 +59,41 @@ import wicketforge.facet.WicketForgeFacet;
 import wicketforge.facet.WicketForgeSupportModel;
 import wicketforge.facet.ui.WicketVersion;
 
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.List;
-import java.util.Properties;
+import java.util.*;
 
 /**
  * Collection of utility methods for the plugin.
  */
 public final class WicketForgeUtil {
+    // roles of a class, cached as bitset per PsiClass
+    private static final int ROLE_COMPONENT = 1;
+    private static final int ROLE_MARKUPCONTAINER = 1 << 1;
+    private static final int ROLE_PAGE = 1 << 2;
+    private static final int ROLE_PANEL = 1 << 3;
+    private static final int ROLE_FORMCOMPONENTPANEL = 1 << 4;
+    private static final int ROLE_MODEL = 1 << 5;
+    private static final int ROLE_PROPERTYMODEL = 1 << 6;
+    private static final int ROLE_RESOURCEMODEL = 1 << 7;
+    private static final int ROLE_FRAGMENT = 1 << 8;
+    private static final int ROLE_BORDER = 1 << 9;
+
+    private static final Map<String, Integer> ROLES = new HashMap<String, Integer>();
+    static {
+        ROLES.put(Constants.WICKET_COMPONENT, ROLE_COMPONENT);
+        ROLES.put(Constants.WICKET_MARKUPCONTAINER, ROLE_MARKUPCONTAINER);
+        ROLES.put(Constants.WICKET_PAGE, ROLE_PAGE);
+        ROLES.put(Constants.WICKET_PANEL, ROLE_PANEL);
+        ROLES.put(Constants.WICKET_FORMCOMPONENTPANEL, ROLE_FORMCOMPONENTPANEL);
+        ROLES.put(Constants.WICKET_IMODEL, ROLE_MODEL);
+        ROLES.put(Constants.WICKET_PROPERTYMODEL, ROLE_PROPERTYMODEL);
+        ROLES.put(Constants.WICKET_RESOURCEMODEL, ROLE_RESOURCEMODEL);
+        ROLES.put(Constants.WICKET_STRINGRESOURCEMODEL, ROLE_RESOURCEMODEL);
+        ROLES.put(Constants.WICKET_FRAGMENT, ROLE_FRAGMENT);
+        ROLES.put(Constants.WICKET_BORDER, ROLE_BORDER);
+    }
+
+    private static final Key<CachedValue<Integer>> ROLES_KEY = Key.create("WICKET_ROLES");
+
     private WicketForgeUtil() {
     }
 
@@ -74,7 +105,7 @@ public final class WicketForgeUtil {
      * @return boolean
      */
     public static boolean isWicketComponent(@NotNull PsiClass clazz) {
-        return isInheritor(clazz, Constants.WICKET_COMPONENT);
+        return hasRole(clazz, ROLE_COMPONENT);
     }
 
     /**
@@ -85,7 +116,7 @@ public final class WicketForgeUtil {
      * @return boolean
      */
     public static boolean isWicketResourceModel(@NotNull PsiClass clazz) {
-        return isInheritor(clazz, Constants.WICKET_RESOURCEMODEL, Constants.WICKET_STRINGRESOURCEMODEL);
+        return hasRole(clazz, ROLE_RESOURCEMODEL);
     }
 
     /**
@@ -96,11 +127,11 @@ public final class WicketForgeUtil {
      * @return boolean
      */
     public static boolean isWicketPropertyModel(@NotNull PsiClass clazz) {
-        return isInheritor(clazz, Constants.WICKET_PROPERTYMODEL);
+        return hasRole(clazz, ROLE_PROPERTYMODEL);
     }
 
     public static boolean isWicketModel(@NotNull PsiClass clazz) {
-        return isInheritor(clazz, Constants.WICKET_IMODEL);
+        return hasRole(clazz, ROLE_MODEL);
     }
 
     /**
@@ -110,7 +141,7 @@ public final class WicketForgeUtil {
      * @return true if instance of a wicket page
      */
     public static boolean isWicketPage(@NotNull final PsiClass clazz) {
-        return isInheritor(clazz, Constants.WICKET_PAGE);
+        return hasRole(clazz, ROLE_PAGE);
     }
 
     /**
@@ -120,7 +151,37 @@ public final class WicketForgeUtil {
      * @return true if instance of a wicket panel
      */
     public static boolean isWicketPanel(@NotNull final PsiClass clazz) {
-        return isInheritor(clazz, Constants.WICKET_PANEL);
+        return hasRole(clazz, ROLE_PANEL);
+    }
+
+    /**
+     * Returns true if the PsiClass is an instance of a wicket fragment.
+     *
+     * @param clazz PsiClass
+     * @return true if instance of a wicket fragment
+     */
+    public static boolean isWicketFragment(@NotNull final PsiClass clazz) {
+        return hasRole(clazz, ROLE_FRAGMENT);
+    }
+
+    /**
+     * Returns true if the PsiClass is an instance of a wicket border.
+     *
+     * @param clazz PsiClass
+     * @return true if instance of a wicket border
+     */
+    public static boolean isWicketBorder(@NotNull final PsiClass clazz) {
+        return hasRole(clazz, ROLE_BORDER);
+    }
+
+    /**
+     * Components added to an anonymous border belong to its body, so to the markup of the enclosing class.
+     *
+     * @param clazz PsiClass
+     * @return true if clazz is an anonymous subclass of a wicket border
+     */
+    public static boolean isAnonymousBorder(@NotNull final PsiClass clazz) {
+        return clazz instanceof PsiAnonymousClass && isWicketBorder(clazz);
     }
 
     /**
@@ -130,7 +191,7 @@ public final class WicketForgeUtil {
      * @return true if instance of a wicket Page or WebMarkupContainerWithAssociatedMarkup
      */
     public static boolean isWicketComponentWithAssociatedMarkup(@NotNull final PsiClass clazz) {
-        return isInheritor(clazz, Constants.WICKET_PAGE, Constants.WICKET_PANEL, Constants.WICKET_FORMCOMPONENTPANEL);
+        return hasRole(clazz, ROLE_PAGE | ROLE_PANEL | ROLE_FORMCOMPONENTPANEL | ROLE_BORDER);
     }
 
     /**
@@ -140,34 +201,41 @@ public final class WicketForgeUtil {
      * @return true if instance of a MarkupContainer
      */
     public static boolean isMarkupContainer(@NotNull final PsiClass clazz) {
-        return isInheritor(clazz, "org.apache.wicket.MarkupContainer");
+        return hasRole(clazz, ROLE_MARKUPCONTAINER);
     }
 
-    private static boolean isInheritor(@NotNull PsiClass candidateClass, @NotNull String... baseClassQualifiedNames) {
+    /**
+     * @param clazz PsiClass
+     * @param roles one or more ROLE_* flags
+     * @return      true if clazz (or one of its superclasses) has one of the roles
+     */
+    private static boolean hasRole(@NotNull final PsiClass clazz, int roles) {
+        Integer classRoles = CachedValuesManager.getManager(clazz.getProject()).getCachedValue(clazz, ROLES_KEY, new CachedValueProvider<Integer>() {
+            public Result<Integer> compute() {
+                // anonymous/local classes can change without changing the java structure -> depend on file too
+                return clazz.getQualifiedName() == null ?
+                        Result.create(computeRoles(clazz), clazz, PsiModificationTracker.JAVA_STRUCTURE_MODIFICATION_COUNT) :
+                        Result.create(computeRoles(clazz), PsiModificationTracker.JAVA_STRUCTURE_MODIFICATION_COUNT);
+            }
+        }, false);
+        return (classRoles & roles) != 0;
+    }
+
+    private static int computeRoles(@NotNull PsiClass candidateClass) {
+        int result = 0;
+        Set<PsiClass> visited = new HashSet<PsiClass>(); // cyclic inheritance is possible while editing
         PsiClass workClass = candidateClass;
-        while (workClass != null) {
+        while (workClass != null && visited.add(workClass)) {
             String candidateClassQualifiedName = workClass.getQualifiedName();
-            if (candidateClassQualifiedName != null) { // just for first time, cause anonymous class returns null...
-                for (String baseClassQualifiedName : baseClassQualifiedNames) {
-                    if (baseClassQualifiedName.equals(candidateClassQualifiedName)) {
-                        return true;
-                    }
+            if (candidateClassQualifiedName != null) { // anonymous class returns null...
+                Integer role = ROLES.get(candidateClassQualifiedName);
+                if (role != null) {
+                    result |= role;
                 }
             }
             workClass = workClass.getSuperClass();
         }
-        return false;
-        /* same (safer?) implementation thru ideas classes...
-        Project project = candidateClass.getProject();
-        JavaPsiFacade psiFacade = JavaPsiFacade.getInstance(project);
-        for (String baseClassQualifiedName : baseClassQualifiedNames) {
-            PsiClass superClass = psiFacade.findClass(baseClassQualifiedName, GlobalSearchScope.allScope(project));
-            if (superClass != null && candidateClass.isInheritor(superClass, true)) {
-                return true;
-            }
-        }
-        return false;
-        */
+        return result;
     }
 
     /**
@@ -178,7 +246,53 @@ public final class WicketForgeUtil {
      */
     @Nullable
     public static PsiFile getMarkupFile(@NotNull PsiClass psiClass) {
-        return getResourceFile(psiClass, getMarkupFileName(psiClass));
+        return WicketForgeResourceCache.getInstance(psiClass.getProject()).getResourceFile(psiClass, getMarkupFileName(psiClass));
+    }
+
+    /**
+     * Returns all markup files for the passed PsiClass: the default markup ex 'MyPage.html' and all
+     * variation/style/locale markup ex 'MyPage_de.html' or 'MyPage_mobile_fr.html'.
+     *
+     * @param psiClass the PsiClass
+     * @return the markup files (default markup first) or empty list if no such file exists.
+     */
+    @NotNull
+    public static List<PsiFile> getMarkupFiles(@NotNull PsiClass psiClass) {
+        return WicketForgeResourceCache.getInstance(psiClass.getProject()).getMarkupFiles(psiClass);
+    }
+
+    /**
+     * @param psiClass  the PsiClass
+     * @param variation variation/style/locale ex '_de' (see {@link #getMarkupVariation(PsiClass, PsiFile)})
+     * @return          markup file of the variation, else {@link #getMarkupFile(PsiClass)}
+     */
+    @Nullable
+    public static PsiFile getMarkupFile(@NotNull PsiClass psiClass, @NotNull String variation) {
+        if (variation.length() > 0) {
+            String name = new StringBuilder(getResourceFileName(psiClass)).append(variation).append(".").append(Constants.HTML).toString();
+            for (PsiFile markupFile : getMarkupFiles(psiClass)) {
+                if (name.equals(markupFile.getName())) {
+                    return markupFile;
+                }
+            }
+        }
+        return getMarkupFile(psiClass);
+    }
+
+    /**
+     * @param psiClass      the PsiClass
+     * @param markupFile    a markup file of the PsiClass
+     * @return              variation/style/locale of the markup file ex '_de' for 'MyPage_de.html' or "" for default markup
+     */
+    @NotNull
+    public static String getMarkupVariation(@NotNull PsiClass psiClass, @NotNull PsiFile markupFile) {
+        String resourceName = getResourceFileName(psiClass);
+        String name = markupFile.getName();
+        int index = name.lastIndexOf('.');
+        if (index >= 0) {
+            name = name.substring(0, index);
+        }
+        return name.startsWith(resourceName) ? name.substring(resourceName.length()) : "";
     }
 
     /**
@@ -189,30 +303,91 @@ public final class WicketForgeUtil {
      */
     @Nullable
     public static PsiFile getPropertiesFile(@NotNull PsiClass psiClass) {
-        PsiFile psiFile = getResourceFile(psiClass, getPropertiesFileName(psiClass));
+        PsiFile psiFile = WicketForgeResourceCache.getInstance(psiClass.getProject()).getResourceFile(psiClass, getPropertiesFileName(psiClass));
         return psiFile;// instanceof PropertiesFile ? (PropertiesFile) psiFile : null;
     }
 
     /**
-     * Returns a resource file from same package like PsiClass.
+     * Returns a resource file from same package like PsiClass (uncached, see {@link WicketForgeResourceCache}).
      *
      * @param psiClass the PsiClass
      * @param resourceName resourceName to Find
      * @return the markup PsiFile or null if no such file exists.
      */
     @Nullable
-    private static PsiFile getResourceFile(@NotNull PsiClass psiClass, @NotNull String resourceName) {
+    static PsiFile findResourceFile(@NotNull PsiClass psiClass, @NotNull String resourceName) {
+        for (PsiDirectory psiDirectory : getResourceDirectories(psiClass)) {
+            PsiFile file = psiDirectory.findFile(resourceName);
+            if (file != null) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns all markup files of a PsiClass (uncached, see {@link WicketForgeResourceCache}). Every directory is
+     * listed once, a variation is only taken if it's not the markup of another class ex 'MyPage_Other.html'.
+     *
+     * @param psiClass the PsiClass
+     * @return the markup files (default markup first)
+     */
+    @NotNull
+    static List<PsiFile> findMarkupFiles(@NotNull PsiClass psiClass) {
+        String resourceName = getResourceFileName(psiClass);
+        String markupFileName = getMarkupFileName(psiClass);
+        String variationPrefix = resourceName + '_';
+        String extension = "." + Constants.HTML;
+        String qualifiedName = psiClass.getQualifiedName();
+        PsiFile markupFile = null;
+        Map<String, PsiFile> variations = new TreeMap<String, PsiFile>(); // sorted by name, first directory wins
+        for (PsiDirectory psiDirectory : getResourceDirectories(psiClass)) {
+            for (VirtualFile virtualFile : psiDirectory.getVirtualFile().getChildren()) {
+                String name = virtualFile.getName();
+                boolean variation = name.startsWith(variationPrefix) && name.endsWith(extension) && name.length() > variationPrefix.length() + extension.length();
+                if (variation ? variations.containsKey(name) : (markupFile != null || !markupFileName.equals(name))) {
+                    continue; // no markup of class or already found in a previous directory
+                }
+                PsiFile psiFile = psiDirectory.getManager().findFile(virtualFile);
+                if (psiFile == null) {
+                    continue;
+                }
+                if (!variation) {
+                    markupFile = psiFile;
+                } else if (qualifiedName != null) {
+                    PsiClass markupClass = getMarkupClass(psiFile);
+                    if (markupClass != null && qualifiedName.equals(markupClass.getQualifiedName())) {
+                        variations.put(name, psiFile);
+                    }
+                }
+            }
+        }
+        List<PsiFile> result = new ArrayList<PsiFile>(variations.size() + 1);
+        if (markupFile != null) {
+            result.add(markupFile);
+        }
+        result.addAll(variations.values());
+        return result;
+    }
+
+    /**
+     * @param psiClass the PsiClass
+     * @return directories of the package of the PsiClass, alternate resource paths first
+     */
+    @NotNull
+    private static List<PsiDirectory> getResourceDirectories(@NotNull PsiClass psiClass) {
         PsiFile psiFile = psiClass.getContainingFile();
         if (!(psiFile instanceof PsiJavaFile)) {
-            return null;
+            return Collections.emptyList();
         }
 
         PsiPackage psiPackage = JavaPsiFacade.getInstance(psiClass.getProject()).findPackage(((PsiJavaFile) psiFile).getPackageName());
         if (psiPackage == null) {
-            return null;
+            return Collections.emptyList();
         }
 
-        // try first to find resource from alternate file paths
+        List<PsiDirectory> result = new ArrayList<PsiDirectory>();
+        // alternate file paths first
         Module module = ModuleUtil.findModuleForPsiElement(psiClass);
         if (module != null) {
             WicketForgeFacet wicketForgeFacet = WicketForgeFacet.getInstance(module);
@@ -226,10 +401,7 @@ public final class WicketForgeUtil {
                             if (virtualFile != null && virtualFile.isValid()) {
                                 PsiDirectory psiDirectory = PsiManager.getInstance(module.getProject()).findDirectory(virtualFile);
                                 if (psiDirectory != null) {
-                                    PsiFile file = psiDirectory.findFile(resourceName);
-                                    if (file != null) {
-                                        return file;
-                                    }
+                                    result.add(psiDirectory);
                                 }
                             }
                         }
@@ -237,15 +409,10 @@ public final class WicketForgeUtil {
                 }
             }
         }
-        // try to find in classpath
+        // then classpath
         GlobalSearchScope scope = module != null ? GlobalSearchScope.moduleWithDependenciesAndLibrariesScope(module) : GlobalSearchScope.allScope(psiClass.getProject());
-        for (PsiDirectory psiDirectory : psiPackage.getDirectories(scope)) {
-            PsiFile file = psiDirectory.findFile(resourceName);
-            if (file != null) {
-                return file;
-            }
-        }
-        return null;
+        result.addAll(Arrays.asList(psiPackage.getDirectories(scope)));
+        return result;
     }
 
     /**
@@ -256,6 +423,17 @@ public final class WicketForgeUtil {
      */
     @Nullable
     public static PsiClass getMarkupClass(@NotNull PsiFile psiFile) {
+        return WicketForgeResourceCache.getInstance(psiFile.getProject()).getMarkupClass(psiFile);
+    }
+
+    /**
+     * Returns the qualified name of the class of an associated markup file (uncached, see {@link WicketForgeResourceCache}).
+     *
+     * @param psiFile the markup file
+     * @return the qualified name of the associated class or null if package could not be resolved.
+     */
+    @Nullable
+    static String findMarkupClassName(@NotNull PsiFile psiFile) {
         PsiDirectory psiDirectory = psiFile.getContainingDirectory();
         if (psiDirectory == null) {
             return null;
@@ -300,9 +478,19 @@ public final class WicketForgeUtil {
             filename = filename.substring(0, index);
         }
         sb.append(StringUtil.replace(filename, "$", "."));
+        return sb.toString();
+    }
 
-        GlobalSearchScope scope = module != null ? GlobalSearchScope.moduleWithDependenciesAndLibrariesScope(module) : GlobalSearchScope.allScope(psiFile.getProject()); 
-        PsiClass psiClass = JavaPsiFacade.getInstance(psiFile.getProject()).findClass(sb.toString(), scope);
+    /**
+     * @param qualifiedName qualified name of the class
+     * @param psiFile       the markup file
+     * @return              the class (source mirror if available) in scope of the markup file or null.
+     */
+    @Nullable
+    static PsiClass findMarkupClass(@NotNull String qualifiedName, @NotNull PsiFile psiFile) {
+        Module module = ModuleUtil.findModuleForPsiElement(psiFile);
+        GlobalSearchScope scope = module != null ? GlobalSearchScope.moduleWithDependenciesAndLibrariesScope(module) : GlobalSearchScope.allScope(psiFile.getProject());
+        PsiClass psiClass = JavaPsiFacade.getInstance(psiFile.getProject()).findClass(qualifiedName, scope);
         if (psiClass instanceof ClsClassImpl) {
             PsiClass sourceMirrorClass = ((ClsClassImpl) psiClass).getSourceMirrorClass();
             if (sourceMirrorClass != null) {
@@ -360,7 +548,7 @@ public final class WicketForgeUtil {
     public static PsiClass getParentWicketClass(@NotNull PsiElement element) {
         PsiClass psiClass = PsiTreeUtil.getParentOfType(element, PsiClass.class, false);
         while (psiClass != null) {
-            if (WicketForgeUtil.isWicketComponentWithAssociatedMarkup(psiClass)) {
+            if (WicketForgeUtil.isWicketComponentWithAssociatedMarkup(psiClass) && !WicketForgeUtil.isAnonymousBorder(psiClass)) {
                 return getConcreteClass(psiClass);
             }
             psiClass = PsiTreeUtil.getParentOfType(psiClass, PsiClass.class, true);
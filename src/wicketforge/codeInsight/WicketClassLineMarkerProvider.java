@@ -36,9 +36,10 @@ public class WicketClassLineMarkerProvider implements LineMarkerProvider {
             if (WicketForgeFacet.hasFacetOrIsFromLibrary(element)) {
                 PsiClass psiClass = (PsiClass) element.getParent();
                 if (WicketForgeUtil.isWicketComponentWithAssociatedMarkup(psiClass)) {
-                    final PsiFile psiFile = WicketForgeUtil.getMarkupFile(psiClass);
-                    if (psiFile != null) {
-                        return NavigableLineMarkerInfo.create(element, new PsiElement[] {psiFile}, Constants.TOMARKUPREF, null);
+                    // default markup and all variations/styles/locales
+                    List<PsiFile> markupFiles = WicketForgeUtil.getMarkupFiles(psiClass);
+                    if (!markupFiles.isEmpty()) {
+                        return NavigableLineMarkerInfo.create(element, markupFiles.toArray(new PsiElement[markupFiles.size()]), Constants.TOMARKUPREF, null);
                     }
                 }
             }
@@ -25,6 +25,7 @@ import com.intellij.psi.*;
 import com.intellij.psi.xml.XmlFile;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import wicketforge.Constants;
 import wicketforge.WicketForgeUtil;
 import wicketforge.psi.hierarchy.AttributeItem;
 import wicketforge.psi.hierarchy.WicketClassHierarchy;
@@ -52,7 +53,9 @@ public class HtmlCompletionContributor extends CompletionContributor {
                                     PsiFile markup = WicketForgeUtil.getMarkupFile(psiClass);
                                     if (markup != null) {
                                         // ... before we search for our parent AttributeItem
-                                        String parentPath = WicketClassHierarchy.findPathOf(psiClass, wicketIdExpression, true, true);
+                                        // completion should stay responsive on big classes -> use partial hierarchy if it takes too long
+                                        WicketClassHierarchy hierarchy = WicketClassHierarchy.create(psiClass, Constants.COMPLETION_HIERARCHY_TIME_BUDGET);
+                                        String parentPath = WicketClassHierarchy.findPathOf(hierarchy, psiClass, wicketIdExpression, true, true);
                                         if (parentPath != null) {
                                             AttributeItem item = WicketMarkupHierarchy.create((XmlFile) markup).getWicketIdPathMap().get(parentPath);
                                             if (item != null) {
@@ -55,7 +55,7 @@ public class JavaCompletionContributor extends CompletionContributor {
                                 // ... before we search for our parent AttributeItem
                                 String parentPath = WicketMarkupHierarchy.findPathOf(wicketIdAttribute, true);
                                 if (parentPath != null) {
-                                    ClassItem item = WicketClassHierarchy.create(clazz).getWicketIdPathMap().get(parentPath);
+                                    ClassItem item = WicketClassHierarchy.create(clazz, Constants.COMPLETION_HIERARCHY_TIME_BUDGET).getWicketIdPathMap().get(parentPath);
                                     if (item != null) {
                                         for (ClassItem child : item.getChilds()) {
                                             rs.addElement(LookupElementBuilder.create(child.getWicketId()).setIcon(child.getIcon()).setTypeText(".java").setTailText("  " + child.getLocationString(), true));
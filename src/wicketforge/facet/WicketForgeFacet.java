@@ -34,6 +34,7 @@ import com.intellij.psi.util.PsiUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import wicketforge.Constants;
+import wicketforge.WicketForgeResourceCache;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -66,6 +67,7 @@ public class WicketForgeFacet extends Facet<WicketForgeFacetConfiguration> {
         for (VirtualFilePointer virtualFilePointer : resourcePaths) {
             configuration.resourceUrls.add(FileUtil.toSystemIndependentName(virtualFilePointer.getUrl()));
         }
+        WicketForgeResourceCache.getInstance(getModule().getProject()).clear();
     }
 
     @Nullable
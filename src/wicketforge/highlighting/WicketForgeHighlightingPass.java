@@ -22,8 +22,11 @@ import com.intellij.codeInsight.daemon.impl.HighlightInfo;
 import com.intellij.codeInsight.daemon.impl.HighlightInfoType;
 import com.intellij.codeInsight.daemon.impl.UpdateHighlightersUtil;
 import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
 import com.intellij.psi.xml.XmlAttribute;
 import com.intellij.psi.xml.XmlAttributeValue;
@@ -31,21 +34,30 @@ import com.intellij.psi.xml.XmlFile;
 import com.intellij.util.SmartList;
 import org.jetbrains.annotations.NotNull;
 import wicketforge.Constants;
+import wicketforge.WicketForgeResourceCache;
 import wicketforge.WicketForgeUtil;
 import wicketforge.facet.WicketForgeFacet;
-import wicketforge.psi.references.ClassWicketIdReference;
-import wicketforge.psi.references.MarkupWicketIdReference;
+import wicketforge.psi.WicketResolveSnapshot;
+import wicketforge.psi.hierarchy.WicketClassHierarchy;
+import wicketforge.psi.hierarchy.WicketForgeHierarchyCache;
+import wicketforge.psi.hierarchy.WicketMarkupHierarchy;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  */
 public class WicketForgeHighlightingPass extends TextEditorHighlightingPass {
+    private static final Key<Stamp> STAMP_KEY = Key.create("WICKET_HIGHLIGHTING_STAMP");
+
     private PsiFile file;
     private int startOffset;
     private int endOffset;
+    private Stamp stamp; // stamp the highlights are collected for, stored when applied
+    private final Set<PsiFile> counterpartFiles = new LinkedHashSet<PsiFile>(); // markup of classes / class of markup
 
     private volatile Collection<HighlightInfo> highlights = Collections.emptyList();
 
@@ -61,15 +73,33 @@ public class WicketForgeHighlightingPass extends TextEditorHighlightingPass {
         if (!WicketForgeFacet.hasFacetOrIsFromLibrary(file)) {
             return;
         }
+        // if resolution of markup/class or a hierarchy could have changed (ex markup created, component added to
+        // other parent) -> we need to highlight whole file
+        Stamp stamp = createStamp();
+        if (!stamp.equals(file.getUserData(STAMP_KEY))) {
+            startOffset = 0;
+            endOffset = myDocument.getTextLength();
+        }
+        this.stamp = stamp;
+        final TextRange range = new TextRange(startOffset, endOffset);
+        final WicketResolveSnapshot snapshot = WicketResolveSnapshot.getInstance(file);
         if (file instanceof XmlFile) {
             final List<HighlightInfo> highlights = new SmartList<HighlightInfo>();
             file.accept(new XmlRecursiveElementVisitor() {
+                @Override
+                public void visitElement(PsiElement element) {
+                    // we only need to visit elements inside our range
+                    if (range.intersects(element.getTextRange())) {
+                        super.visitElement(element);
+                    }
+                }
+
                 @Override
                 public void visitXmlAttribute(XmlAttribute attribute) {
                     super.visitXmlAttribute(attribute);
                     if (Constants.WICKET_ID.equals(attribute.getName())) {
                         XmlAttributeValue attributeValue = attribute.getValueElement();
-                        if (attributeValue != null && hasReference(attributeValue, MarkupWicketIdReference.class)) {
+                        if (attributeValue != null && range.intersects(attributeValue.getTextRange()) && snapshot.resolve(attributeValue) != null) {
                             highlights.add(new WicketIdHighlightInfo(WicketForgeColorSettingsPage.HIGHLIGHT_MARKUPWICKETID, attributeValue.getTextRange()));
                         }
                     }
@@ -80,6 +110,33 @@ public class WicketForgeHighlightingPass extends TextEditorHighlightingPass {
             final List<HighlightInfo> highlights = new SmartList<HighlightInfo>();
             for (PsiClass psiClass : ((PsiJavaFile) file).getClasses()) {
                 psiClass.accept(new JavaRecursiveElementVisitor() {
+                    @Override
+                    public void visitElement(PsiElement element) {
+                        // we only need to visit elements inside our range
+                        if (range.intersects(element.getTextRange())) {
+                            super.visitElement(element);
+                        }
+                    }
+
+                    @Override
+                    public void visitMethodCallExpression(PsiMethodCallExpression expression) {
+                        super.visitMethodCallExpression(expression);
+                        // wicketIds passed to component factory methods ex createNameField("name")
+                        for (PsiExpression argument : expression.getArgumentList().getExpressions()) {
+                            if (argument instanceof PsiLiteralExpression && range.intersects(argument.getTextRange())) {
+                                PsiElement[] targets = snapshot.resolve(argument);
+                                if (targets != null) {
+                                    highlights.add(new WicketIdHighlightInfo(
+                                            targets.length > 0 ?
+                                                    WicketForgeColorSettingsPage.HIGHLIGHT_JAVAWICKETID :
+                                                    WicketForgeColorSettingsPage.HIGHLIGHT_JAVAWICKETID_NOTRESOLVABLE,
+                                            argument.getTextRange())
+                                    );
+                                }
+                            }
+                        }
+                    }
+
                     @Override
                     public void visitNewExpression(PsiNewExpression expression) {
                         super.visitNewExpression(expression);
@@ -89,10 +146,10 @@ public class WicketForgeHighlightingPass extends TextEditorHighlightingPass {
                             // highlight wicketId expression (but only if its not a page)
                             if (!WicketForgeUtil.isWicketPage(psiClass)) {
                                 PsiExpression wicketIdExpression = WicketForgeUtil.getWicketIdExpressionFromArguments(expression);
-                                if (wicketIdExpression != null) {
-                                    // only PsiLiteralExpression are resolvable wicketIds
+                                if (wicketIdExpression != null && range.intersects(wicketIdExpression.getTextRange())) {
+                                    // literals and constants are resolvable wicketIds
                                     highlights.add(new WicketIdHighlightInfo(
-                                            hasReference(wicketIdExpression, ClassWicketIdReference.class) ?
+                                            snapshot.resolve(wicketIdExpression) != null ?
                                                     WicketForgeColorSettingsPage.HIGHLIGHT_JAVAWICKETID :
                                                     WicketForgeColorSettingsPage.HIGHLIGHT_JAVAWICKETID_NOTRESOLVABLE,
                                             wicketIdExpression.getTextRange())
@@ -114,22 +171,106 @@ public class WicketForgeHighlightingPass extends TextEditorHighlightingPass {
         }
     }
 
-    private boolean hasReference(@NotNull final PsiElement element, @NotNull final Class<? extends PsiReference> referenceClass) {
-        for (PsiReference reference : element.getReferences()) {
-            if (reference.getClass().equals(referenceClass)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     @Override
     public void doApplyInformationToEditor() {
         UpdateHighlightersUtil.setHighlightersToEditor(myProject, myDocument, startOffset, endOffset, highlights, getId());
         DaemonCodeAnalyzer daemonCodeAnalyzer = DaemonCodeAnalyzer.getInstance(myProject);
+        if (stamp != null) {
+            // only now, a cancelled pass needs to highlight whole file again
+            Stamp lastStamp = file.getUserData(STAMP_KEY);
+            file.putUserData(STAMP_KEY, stamp);
+            if (lastStamp != null && lastStamp.hierarchyHash != stamp.hierarchyHash) {
+                // our hierarchy has changed -> resolution of the open counterparts too
+                FileEditorManager fileEditorManager = FileEditorManager.getInstance(myProject);
+                for (PsiFile counterpartFile : counterpartFiles) {
+                    VirtualFile virtualFile = counterpartFile.getVirtualFile();
+                    if (virtualFile != null && fileEditorManager.isFileOpen(virtualFile)) {
+                        daemonCodeAnalyzer.restart(counterpartFile);
+                    }
+                }
+            }
+        }
         ((DaemonCodeAnalyzerImpl) daemonCodeAnalyzer).getFileStatusMap().markFileUpToDate(myDocument, file, getId());
     }
 
+    /**
+     * Stamp of everything the highlights depend on besides the dirty range: resolution class <-> markup, hierarchy
+     * of this file and the hierarchies of its counterparts (markup of the classes / class of the markup).
+     * Also collects the counterpart files.
+     */
+    @NotNull
+    private Stamp createStamp() {
+        long resourceModificationCount = WicketForgeResourceCache.getInstance(myProject).getModificationCount();
+        WicketForgeHierarchyCache cache = WicketForgeHierarchyCache.getInstance(myProject);
+        int hierarchyHash = 1;
+        int counterpartHash = 1;
+        if (file instanceof XmlFile) {
+            hierarchyHash = WicketMarkupHierarchy.create((XmlFile) file).getWicketIdPathMap().keySet().hashCode();
+            PsiClass markupClass = WicketForgeUtil.getMarkupClass(file);
+            if (markupClass != null) {
+                // other side from project cache (class hierarchy could be of a closed file)
+                counterpartHash = cache.getClassHierarchy(markupClass).getStructureHash();
+                PsiFile classFile = markupClass.getContainingFile();
+                if (classFile != null) {
+                    counterpartFiles.add(classFile);
+                }
+            }
+        } else if (file instanceof PsiJavaFile) {
+            List<PsiClass> classes = new SmartList<PsiClass>();
+            collectClasses(((PsiJavaFile) file).getClasses(), classes);
+            for (PsiClass psiClass : classes) {
+                List<PsiFile> markupFiles = WicketForgeUtil.isWicketComponent(psiClass) ? WicketForgeUtil.getMarkupFiles(psiClass) : Collections.<PsiFile>emptyList();
+                if (!markupFiles.isEmpty()) {
+                    hierarchyHash = 31 * hierarchyHash + WicketClassHierarchy.create(psiClass).getWicketIdPathMap().keySet().hashCode();
+                    for (PsiFile markupFile : markupFiles) {
+                        if (markupFile instanceof XmlFile) {
+                            // other side from project cache (markup could be a closed file)
+                            counterpartHash = 31 * counterpartHash + cache.getMarkupHierarchy((XmlFile) markupFile).getStructureHash();
+                            counterpartFiles.add(markupFile);
+                        }
+                    }
+                }
+            }
+        }
+        return new Stamp(resourceModificationCount, hierarchyHash, counterpartHash);
+    }
+
+    private static void collectClasses(@NotNull PsiClass[] psiClasses, @NotNull List<PsiClass> result) {
+        for (PsiClass psiClass : psiClasses) {
+            result.add(psiClass);
+            collectClasses(psiClass.getInnerClasses(), result);
+        }
+    }
+
+    private static final class Stamp {
+        private final long resourceModificationCount;
+        private final int hierarchyHash;
+        private final int counterpartHash;
+
+        private Stamp(long resourceModificationCount, int hierarchyHash, int counterpartHash) {
+            this.resourceModificationCount = resourceModificationCount;
+            this.hierarchyHash = hierarchyHash;
+            this.counterpartHash = counterpartHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Stamp)) {
+                return false;
+            }
+            Stamp stamp = (Stamp) o;
+            return resourceModificationCount == stamp.resourceModificationCount && hierarchyHash == stamp.hierarchyHash && counterpartHash == stamp.counterpartHash;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (int) (resourceModificationCount ^ (resourceModificationCount >>> 32)) + hierarchyHash) + counterpartHash;
+        }
+    }
+
     private static class WicketIdHighlightInfo extends HighlightInfo {
         private WicketIdHighlightInfo(HighlightInfoType type, TextRange textRange) {
             super(type, textRange.getStartOffset(), textRange.getEndOffset(), null, null);
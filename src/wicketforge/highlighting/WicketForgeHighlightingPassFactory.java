@@ -15,22 +15,30 @@
  */
 package wicketforge.highlighting;
 
+import com.intellij.codeHighlighting.DirtyScopeTrackingHighlightingPassFactory;
 import com.intellij.codeHighlighting.Pass;
 import com.intellij.codeHighlighting.TextEditorHighlightingPass;
-import com.intellij.codeHighlighting.TextEditorHighlightingPassFactory;
 import com.intellij.codeHighlighting.TextEditorHighlightingPassRegistrar;
+import com.intellij.codeInsight.daemon.impl.FileStatusMap;
 import com.intellij.openapi.components.AbstractProjectComponent;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.TextRange;
 import com.intellij.psi.PsiFile;
 import org.jetbrains.annotations.NotNull;
 
 /**
  */
-public class WicketForgeHighlightingPassFactory extends AbstractProjectComponent implements TextEditorHighlightingPassFactory {
+public class WicketForgeHighlightingPassFactory extends AbstractProjectComponent implements DirtyScopeTrackingHighlightingPassFactory {
+    private final int myPassId;
+
     public WicketForgeHighlightingPassFactory(Project project, TextEditorHighlightingPassRegistrar highlightingPassRegistrar) {
         super(project);
-        highlightingPassRegistrar.registerTextEditorHighlightingPass(this, null, new int[]{Pass.UPDATE_ALL}, false, -1);
+        myPassId = highlightingPassRegistrar.registerTextEditorHighlightingPass(this, null, new int[]{Pass.UPDATE_ALL}, false, -1);
+    }
+
+    public int getPassId() {
+        return myPassId;
     }
 
     @NotNull
@@ -40,6 +48,12 @@ public class WicketForgeHighlightingPassFactory extends AbstractProjectComponent
     }
 
     public TextEditorHighlightingPass createHighlightingPass(@NotNull PsiFile file, @NotNull Editor editor) {
-        return new WicketForgeHighlightingPass(file, editor, 0, editor.getDocument().getTextLength());
+        // only dirty range of our own pass (null if nothing has changed since our last run), the pass widens it to the
+        // whole file if a hierarchy has changed and restarts open counterparts if their resolution has changed
+        TextRange textRange = FileStatusMap.getDirtyTextRange(editor, myPassId);
+        if (textRange == null) {
+            return null;
+        }
+        return new WicketForgeHighlightingPass(file, editor, textRange.getStartOffset(), textRange.getEndOffset());
     }
 }
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2010 The WicketForge-Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wicketforge.indexing;
+
+import com.intellij.lexer.JavaLexer;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.fileTypes.StdFileTypes;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.JarFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.pom.java.LanguageLevel;
+import com.intellij.psi.*;
+import com.intellij.psi.impl.source.tree.ElementType;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.util.indexing.*;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import wicketforge.psi.references.ClassWicketIdReferenceProvider;
+
+import java.util.*;
+
+/**
+ * Index of all component construction sites ex 'new Label("name", ...)' in java source files (not in jars), keyed
+ * by wicketId.
+ * <p/>
+ * Values are the start offsets of the wicketId literals. The index is built from the java lexer tokens, resolving is
+ * not allowed while indexing. So it contains every new expression with a string literal as complete first argument,
+ * except for classes that can't be wicket components (java.*, javax.*, exceptions, strings, numbers).
+ * {@link #findWicketIdExpressions} applies the same rules like {@link ClassWicketIdReferenceProvider} to the (few)
+ * candidates.
+ */
+public class WicketComponentIndex implements FileBasedIndexExtension<String, List<Integer>> {
+    public static final ID<String, List<Integer>> NAME = ID.create("WicketForgeComponentIndex");
+
+    /**
+     * java.lang classes with a String constructor (never imported).
+     */
+    private static final Set<String> JAVA_LANG_CLASSES = new HashSet<String>(Arrays.asList(
+            "String", "StringBuilder", "StringBuffer", "Object", "Boolean", "Byte", "Short", "Integer", "Long", "Float",
+            "Double", "Character", "Thread", "ThreadGroup", "Throwable"));
+
+    private final DataIndexer<String, List<Integer>, FileContent> indexer = new DataIndexer<String, List<Integer>, FileContent>() {
+        @NotNull
+        public Map<String, List<Integer>> map(FileContent inputData) {
+            Map<String, List<Integer>> result = new HashMap<String, List<Integer>>();
+            CharSequence text = inputData.getContentAsText();
+            Lexer lexer = new JavaLexer(LanguageLevel.HIGHEST);
+            lexer.start(text);
+            Map<String, String> imports = new HashMap<String, String>(); // simple name -> qualified name
+            while (lexer.getTokenType() != null) {
+                IElementType tokenType = lexer.getTokenType();
+                if (tokenType == JavaTokenType.IMPORT_KEYWORD) {
+                    lexer.advance();
+                    String qualifiedName = readQualifiedName(lexer);
+                    if (qualifiedName != null) {
+                        imports.put(StringUtil.getShortName(qualifiedName), qualifiedName);
+                    }
+                } else if (tokenType == JavaTokenType.NEW_KEYWORD) {
+                    lexer.advance();
+                    String className = readQualifiedName(lexer);
+                    if (className != null && isPossibleComponentClass(className, imports) && skipTypeArguments(lexer)
+                            && lexer.getTokenType() == JavaTokenType.LPARENTH) {
+                        advance(lexer);
+                        if (lexer.getTokenType() == JavaTokenType.STRING_LITERAL) {
+                            int offset = lexer.getTokenStart();
+                            String literal = text.subSequence(offset, lexer.getTokenEnd()).toString();
+                            advance(lexer);
+                            // complete first argument only (not ex "a" + b)
+                            if (literal.length() >= 2 && (lexer.getTokenType() == JavaTokenType.COMMA || lexer.getTokenType() == JavaTokenType.RPARENTH)) {
+                                put(result, StringUtil.unescapeStringCharacters(literal.substring(1, literal.length() - 1)), offset);
+                            }
+                        }
+                    }
+                } else {
+                    lexer.advance();
+                }
+            }
+            return result;
+        }
+    };
+
+    /**
+     * Reads ex 'a.b.C' and stops at the token after it (whitespace and comments skipped).
+     *
+     * @return qualified name or null if lexer is not at a (complete) qualified name
+     */
+    @Nullable
+    private static String readQualifiedName(@NotNull Lexer lexer) {
+        skipWhitespaceAndComments(lexer);
+        if (lexer.getTokenType() != JavaTokenType.IDENTIFIER) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        while (lexer.getTokenType() == JavaTokenType.IDENTIFIER) {
+            sb.append(lexer.getBufferSequence(), lexer.getTokenStart(), lexer.getTokenEnd());
+            advance(lexer);
+            if (lexer.getTokenType() != JavaTokenType.DOT) {
+                break;
+            }
+            sb.append('.');
+            advance(lexer);
+        }
+        return sb.charAt(sb.length() - 1) == '.' ? null : sb.toString(); // ex 'import a.b.*'
+    }
+
+    /**
+     * Skips type arguments ex '&lt;String&gt;' or '&lt;&gt;'.
+     *
+     * @return false if type arguments are not closed
+     */
+    private static boolean skipTypeArguments(@NotNull Lexer lexer) {
+        if (lexer.getTokenType() != JavaTokenType.LT) {
+            return true;
+        }
+        int depth = 0;
+        while (lexer.getTokenType() != null) {
+            IElementType tokenType = lexer.getTokenType();
+            if (tokenType == JavaTokenType.LT) {
+                depth++;
+            } else if (tokenType == JavaTokenType.GT) {
+                depth--;
+            } else if (tokenType != JavaTokenType.IDENTIFIER && tokenType != JavaTokenType.DOT && tokenType != JavaTokenType.COMMA
+                    && tokenType != JavaTokenType.QUEST && tokenType != JavaTokenType.EXTENDS_KEYWORD && tokenType != JavaTokenType.SUPER_KEYWORD
+                    && tokenType != JavaTokenType.LBRACKET && tokenType != JavaTokenType.RBRACKET
+                    && !ElementType.JAVA_COMMENT_OR_WHITESPACE_BIT_SET.contains(tokenType)) {
+                return false;
+            }
+            advance(lexer);
+            if (depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void advance(@NotNull Lexer lexer) {
+        lexer.advance();
+        skipWhitespaceAndComments(lexer);
+    }
+
+    private static void skipWhitespaceAndComments(@NotNull Lexer lexer) {
+        while (lexer.getTokenType() != null && ElementType.JAVA_COMMENT_OR_WHITESPACE_BIT_SET.contains(lexer.getTokenType())) {
+            lexer.advance();
+        }
+    }
+
+    /**
+     * @param className simple or qualified name of the created class
+     * @param imports   single type imports of the file (simple name -> qualified name)
+     * @return          false if class can't be a wicket component
+     */
+    private static boolean isPossibleComponentClass(@NotNull String className, @NotNull Map<String, String> imports) {
+        String simpleName = StringUtil.getShortName(className);
+        if (simpleName.endsWith("Exception") || simpleName.endsWith("Error")) {
+            return false;
+        }
+        String qualifiedName = className.indexOf('.') >= 0 ? className : imports.get(className);
+        if (qualifiedName == null) {
+            return !JAVA_LANG_CLASSES.contains(className);
+        }
+        return !qualifiedName.startsWith("java.") && !qualifiedName.startsWith("javax.");
+    }
+
+    private static void put(@NotNull Map<String, List<Integer>> result, @NotNull String wicketId, int offset) {
+        List<Integer> offsets = result.get(wicketId);
+        if (offsets == null) {
+            offsets = new ArrayList<Integer>(1);
+            result.put(wicketId, offsets);
+        }
+        offsets.add(offset);
+    }
+
+    private static final FileBasedIndex.InputFilter INPUT_FILTER = new FileBasedIndex.InputFilter() {
+        public boolean acceptInput(VirtualFile file) {
+            // sources of libraries are not searched for usages
+            return file.getFileType() == StdFileTypes.JAVA && !(file.getFileSystem() instanceof JarFileSystem);
+        }
+    };
+
+    public ID<String, List<Integer>> getName() {
+        return NAME;
+    }
+
+    public DataIndexer<String, List<Integer>, FileContent> getIndexer() {
+        return indexer;
+    }
+
+    public KeyDescriptor<String> getKeyDescriptor() {
+        return new EnumeratorStringDescriptor();
+    }
+
+    public DataExternalizer<List<Integer>> getValueExternalizer() {
+        return WicketMarkupIndex.OFFSETS_EXTERNALIZER;
+    }
+
+    public FileBasedIndex.InputFilter getInputFilter() {
+        return INPUT_FILTER;
+    }
+
+    public boolean dependsOnFileContent() {
+        return true;
+    }
+
+    public int getVersion() {
+        return 2; // 2: lexer, no jars, filtered classes
+    }
+
+    public int getCacheSize() {
+        return DEFAULT_CACHE_SIZE;
+    }
+
+    /**
+     * @param project   Project
+     * @param wicketId  wicketId ex 'name'
+     * @param scope     GlobalSearchScope
+     * @return          all wicketId literals of new wicket components with this wicketId
+     */
+    @NotNull
+    public static List<PsiLiteralExpression> findWicketIdExpressions(@NotNull Project project, @NotNull String wicketId, @NotNull GlobalSearchScope scope) {
+        final PsiManager psiManager = PsiManager.getInstance(project);
+        final List<PsiLiteralExpression> result = new ArrayList<PsiLiteralExpression>();
+        FileBasedIndex.getInstance().processValues(NAME, wicketId, null, new FileBasedIndex.ValueProcessor<List<Integer>>() {
+            public boolean process(VirtualFile file, List<Integer> value) {
+                PsiFile psiFile = psiManager.findFile(file);
+                if (psiFile instanceof PsiJavaFile) {
+                    for (Integer offset : value) {
+                        PsiLiteralExpression expression = PsiTreeUtil.getParentOfType(psiFile.findElementAt(offset), PsiLiteralExpression.class, false);
+                        if (expression != null && ClassWicketIdReferenceProvider.getWicketClass(expression) != null) {
+                            result.add(expression);
+                        }
+                    }
+                }
+                return true;
+            }
+        }, scope);
+        return result;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2010 The WicketForge-Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wicketforge.indexing;
+
+import com.intellij.openapi.fileTypes.StdFileTypes;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.indexing.*;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import org.jetbrains.annotations.NotNull;
+import wicketforge.Constants;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Index of all wicket:id's in markup files.
+ * <p/>
+ * Keys are the wicketId itself ex 'name' and the full hierarchy path ex '#form#name' (paths always start with
+ * {@link Constants#HIERARCHYSEPARATOR}, wicketIds never contain it). Only ids of the hierarchy are indexed (see
+ * {@link WicketMarkupScanner}), ids inside &lt;wicket:extend&gt; only by wicketId. Values are the start offsets of the
+ * wicket:id attribute values. Used by {@link wicketforge.psi.references.WicketIdReferencesSearcher}.
+ */
+public class WicketMarkupIndex implements FileBasedIndexExtension<String, List<Integer>> {
+    public static final ID<String, List<Integer>> NAME = ID.create("WicketForgeMarkupIndex");
+
+    private final DataIndexer<String, List<Integer>, FileContent> indexer = new DataIndexer<String, List<Integer>, FileContent>() {
+        @NotNull
+        public Map<String, List<Integer>> map(FileContent inputData) {
+            Map<String, List<Integer>> result = new HashMap<String, List<Integer>>();
+            // lexer only, no xml psi needed
+            for (WicketMarkupScanner.Occurrence occurrence : WicketMarkupScanner.scan(inputData.getContentAsText())) {
+                put(result, occurrence.getWicketId(), occurrence.getOffset());
+                if (!occurrence.isExtension()) {
+                    // path inside <wicket:extend> depends on base markup
+                    put(result, occurrence.getPath(), occurrence.getOffset());
+                }
+            }
+            return result;
+        }
+    };
+
+    private static void put(@NotNull Map<String, List<Integer>> result, @NotNull String key, int offset) {
+        List<Integer> offsets = result.get(key);
+        if (offsets == null) {
+            offsets = new ArrayList<Integer>(1);
+            result.put(key, offsets);
+        }
+        offsets.add(offset);
+    }
+
+    static final DataExternalizer<List<Integer>> OFFSETS_EXTERNALIZER = new DataExternalizer<List<Integer>>() {
+        public void save(DataOutput out, List<Integer> value) throws IOException {
+            out.writeInt(value.size());
+            for (Integer offset : value) {
+                out.writeInt(offset);
+            }
+        }
+
+        public List<Integer> read(DataInput in) throws IOException {
+            int size = in.readInt();
+            List<Integer> result = new ArrayList<Integer>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(in.readInt());
+            }
+            return result;
+        }
+    };
+
+    private static final FileBasedIndex.InputFilter INPUT_FILTER = new FileBasedIndex.InputFilter() {
+        public boolean acceptInput(VirtualFile file) {
+            return file.getFileType() == StdFileTypes.HTML;
+        }
+    };
+
+    public ID<String, List<Integer>> getName() {
+        return NAME;
+    }
+
+    public DataIndexer<String, List<Integer>, FileContent> getIndexer() {
+        return indexer;
+    }
+
+    public KeyDescriptor<String> getKeyDescriptor() {
+        return new EnumeratorStringDescriptor();
+    }
+
+    public DataExternalizer<List<Integer>> getValueExternalizer() {
+        return OFFSETS_EXTERNALIZER;
+    }
+
+    public FileBasedIndex.InputFilter getInputFilter() {
+        return INPUT_FILTER;
+    }
+
+    public boolean dependsOnFileContent() {
+        return true;
+    }
+
+    public int getVersion() {
+        return 4; // 2: fragment paths, 3: lexer scanner, 4: extend/border sections
+    }
+
+    public int getCacheSize() {
+        return DEFAULT_CACHE_SIZE;
+    }
+
+    /**
+     * @param wicketId  wicketId ex 'name'
+     * @param scope     GlobalSearchScope
+     * @return          all markup files containing the wicketId
+     */
+    @NotNull
+    public static Collection<VirtualFile> getFilesByWicketId(@NotNull String wicketId, @NotNull GlobalSearchScope scope) {
+        return FileBasedIndex.getInstance().getContainingFiles(NAME, wicketId, scope);
+    }
+
+    /**
+     * @param key       wicketId or hierarchy path
+     * @param file      markup file
+     * @param scope     GlobalSearchScope
+     * @return          start offsets of the matching wicket:id attribute values in file
+     */
+    @NotNull
+    public static List<Integer> getOffsets(@NotNull String key, @NotNull VirtualFile file, @NotNull GlobalSearchScope scope) {
+        final List<Integer> result = new ArrayList<Integer>();
+        FileBasedIndex.getInstance().processValues(NAME, key, file, new FileBasedIndex.ValueProcessor<List<Integer>>() {
+            public boolean process(VirtualFile file, List<Integer> value) {
+                result.addAll(value);
+                return true;
+            }
+        }, scope);
+        return result;
+    }
+}
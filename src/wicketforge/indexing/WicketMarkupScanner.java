@@ -0,0 +1,237 @@
+/*
+ * Copyright 2010 The WicketForge-Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wicketforge.indexing;
+
+import com.intellij.lexer.HtmlLexer;
+import com.intellij.lexer.Lexer;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.xml.XmlTokenType;
+import com.intellij.util.text.CharArrayUtil;
+import com.intellij.xml.util.HtmlUtil;
+import org.jetbrains.annotations.NotNull;
+import wicketforge.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the wicket:id's of markup from the html lexer tokens, without building the XmlFile.
+ * <p/>
+ * Same ids and paths like {@link wicketforge.psi.hierarchy.WicketMarkupHierarchy} for well-formed markup, like wicket
+ * needs it for tags with wicket:id: fragments are own sub hierarchies, markup with &lt;wicket:extend&gt; or
+ * &lt;wicket:border&gt; only has the ids inside these sections. Ids inside &lt;wicket:extend&gt; get paths relative to
+ * the section (see {@link Occurrence#isExtension()}), the merged path needs the base markup. Void html elements
+ * (ex &lt;br&gt;) never have children, an end tag closes all tags opened after its start tag and end tags without start
+ * tag are ignored.
+ */
+public final class WicketMarkupScanner {
+    // section state of a tag
+    private static final int OUTSIDE = 0; // not part of hierarchy (markup has sections, tag is outside of them)
+    private static final int EXACT = 1; // path like in hierarchy
+    private static final int EXTENSION = 2; // inside <wicket:extend>, path relative to <wicket:child> of base markup
+
+    private WicketMarkupScanner() {
+    }
+
+    /**
+     * @param text  markup
+     * @return      all wicket:id's in document order
+     */
+    @NotNull
+    public static List<Occurrence> scan(@NotNull CharSequence text) {
+        List<Occurrence> result = new ArrayList<Occurrence>();
+        List<String> tagNames = new ArrayList<String>(); // stack of open tags
+        List<String> tagPaths = new ArrayList<String>(); // path inside the open tags
+        List<Integer> tagStates = new ArrayList<Integer>(); // section state inside the open tags
+        boolean extension = containsTag(text, Constants.WICKET_EXTEND);
+        boolean border = containsTag(text, Constants.WICKET_BORDER_TAG);
+        int rootState = extension || border ? OUTSIDE : EXACT;
+        Lexer lexer = new HtmlLexer();
+        lexer.start(text);
+
+        boolean inStartTag = false;
+        boolean inEndTag = false;
+        String tagName = null;
+        String attributeName = null;
+        StringBuilder value = null; // value of current attribute
+        int valueOffset = 0;
+        String wicketId = null; // of current tag
+        int wicketIdOffset = 0;
+
+        for (IElementType tokenType; (tokenType = lexer.getTokenType()) != null; lexer.advance()) {
+            if (tokenType == XmlTokenType.XML_START_TAG_START) {
+                inStartTag = true;
+                inEndTag = false;
+                tagName = null;
+                attributeName = null;
+                wicketId = null;
+            } else if (tokenType == XmlTokenType.XML_END_TAG_START) {
+                inStartTag = false;
+                inEndTag = true;
+                tagName = null;
+            } else if (inStartTag || inEndTag) {
+                if (tokenType == XmlTokenType.XML_NAME || tokenType == XmlTokenType.XML_TAG_NAME) {
+                    if (tagName == null) {
+                        tagName = getTokenText(lexer);
+                    } else {
+                        attributeName = getTokenText(lexer);
+                        value = null;
+                    }
+                } else if (tokenType == XmlTokenType.XML_ATTRIBUTE_VALUE_START_DELIMITER) {
+                    value = new StringBuilder();
+                    valueOffset = lexer.getTokenStart();
+                } else if (tokenType == XmlTokenType.XML_ATTRIBUTE_VALUE_TOKEN
+                        || tokenType == XmlTokenType.XML_CHAR_ENTITY_REF || tokenType == XmlTokenType.XML_ENTITY_REF_TOKEN) {
+                    if (value == null) {
+                        // unquoted value
+                        value = new StringBuilder();
+                        valueOffset = lexer.getTokenStart();
+                    }
+                    value.append(text, lexer.getTokenStart(), lexer.getTokenEnd());
+                    if (Constants.WICKET_ID.equals(attributeName)) {
+                        wicketId = value.toString();
+                        wicketIdOffset = valueOffset;
+                    }
+                } else if (tokenType == XmlTokenType.XML_ATTRIBUTE_VALUE_END_DELIMITER) {
+                    if (Constants.WICKET_ID.equals(attributeName) && wicketId == null) {
+                        wicketId = value == null ? "" : value.toString(); // empty value
+                        wicketIdOffset = valueOffset;
+                    }
+                    attributeName = null;
+                    value = null;
+                } else if (tokenType == XmlTokenType.XML_TAG_END || tokenType == XmlTokenType.XML_EMPTY_ELEMENT_END) {
+                    if (inStartTag && tagName != null) {
+                        String path = tagPaths.isEmpty() ? "" : tagPaths.get(tagPaths.size() - 1);
+                        int state = tagStates.isEmpty() ? rootState : tagStates.get(tagStates.size() - 1);
+                        boolean fragment = Constants.WICKET_FRAGMENT_TAG.equals(tagName);
+                        if (extension && state == OUTSIDE && Constants.WICKET_EXTEND.equals(tagName)) {
+                            // continues at <wicket:child> of base markup
+                            path = "";
+                            state = EXTENSION;
+                        } else if (border && state == OUTSIDE && Constants.WICKET_BORDER_TAG.equals(tagName)) {
+                            state = EXACT;
+                        } else if (fragment) {
+                            // fragment -> own sub hierarchy at root ex '#~markupId#name'
+                            path = "";
+                            if (state == EXTENSION) {
+                                state = EXACT;
+                            }
+                        }
+                        if (wicketId != null && state != OUTSIDE) {
+                            String id = fragment ? Constants.FRAGMENTPREFIX + wicketId : wicketId;
+                            String parentPath = path;
+                            path = parentPath + Constants.HIERARCHYSEPARATOR + id;
+                            result.add(new Occurrence(id, path, parentPath, wicketIdOffset, tagName, state == EXTENSION));
+                        }
+                        if (tokenType == XmlTokenType.XML_TAG_END && !HtmlUtil.isSingleHtmlTag(tagName)) {
+                            tagNames.add(tagName);
+                            tagPaths.add(path);
+                            tagStates.add(state);
+                        }
+                    } else if (inEndTag && tagName != null) {
+                        closeTag(tagNames, tagPaths, tagStates, tagName);
+                    }
+                    inStartTag = false;
+                    inEndTag = false;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void closeTag(@NotNull List<String> tagNames, @NotNull List<String> tagPaths, @NotNull List<Integer> tagStates, @NotNull String tagName) {
+        for (int i = tagNames.size() - 1; i >= 0; i--) {
+            if (tagName.equalsIgnoreCase(tagNames.get(i))) {
+                while (tagNames.size() > i) {
+                    tagNames.remove(tagNames.size() - 1);
+                    tagPaths.remove(tagPaths.size() - 1);
+                    tagStates.remove(tagStates.size() - 1);
+                }
+                return;
+            }
+        }
+    }
+
+    private static boolean containsTag(@NotNull CharSequence text, @NotNull String tagName) {
+        return CharArrayUtil.indexOf(text, "<" + tagName, 0) >= 0;
+    }
+
+    @NotNull
+    private static String getTokenText(@NotNull Lexer lexer) {
+        return lexer.getBufferSequence().subSequence(lexer.getTokenStart(), lexer.getTokenEnd()).toString();
+    }
+
+    /**
+     * A wicket:id attribute.
+     */
+    public static final class Occurrence {
+        private final String wicketId;
+        private final String path;
+        private final String parentPath;
+        private final int offset;
+        private final String tagName;
+        private final boolean extension;
+
+        private Occurrence(@NotNull String wicketId, @NotNull String path, @NotNull String parentPath, int offset, @NotNull String tagName, boolean extension) {
+            this.wicketId = wicketId;
+            this.path = path;
+            this.parentPath = parentPath;
+            this.offset = offset;
+            this.tagName = tagName;
+            this.extension = extension;
+        }
+
+        /**
+         * @return wicketId ('~markupId' for fragments)
+         */
+        @NotNull
+        public String getWicketId() {
+            return wicketId;
+        }
+
+        /**
+         * @return hierarchy path ex '#form#name'
+         */
+        @NotNull
+        public String getPath() {
+            return path;
+        }
+
+        @NotNull
+        public String getParentPath() {
+            return parentPath;
+        }
+
+        /**
+         * @return start offset of the attribute value (like XmlAttributeValue)
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        @NotNull
+        public String getTagName() {
+            return tagName;
+        }
+
+        /**
+         * @return true if inside &lt;wicket:extend&gt;: paths are relative to &lt;wicket:child&gt; of the base markup
+         */
+        public boolean isExtension() {
+            return extension;
+        }
+    }
+}
@@ -16,12 +16,13 @@
 package wicketforge.inspection;
 
 import com.intellij.codeHighlighting.HighlightDisplayLevel;
+import com.intellij.codeInspection.GlobalInspectionContext;
 import com.intellij.codeInspection.LocalQuickFix;
 import com.intellij.codeInspection.ProblemHighlightType;
 import com.intellij.codeInspection.ProblemsHolder;
 import com.intellij.codeInspection.XmlSuppressableInspectionTool;
+import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiElementVisitor;
-import com.intellij.psi.PsiReference;
 import com.intellij.psi.XmlElementVisitor;
 import com.intellij.psi.xml.XmlAttribute;
 import com.intellij.psi.xml.XmlAttributeValue;
@@ -29,11 +30,19 @@ import org.jetbrains.annotations.Nls;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import wicketforge.Constants;
-import wicketforge.psi.references.MarkupWicketIdReference;
+import wicketforge.psi.WicketBatchAnalyzer;
+import wicketforge.psi.WicketResolveSnapshot;
 
 /**
  */
 public class HtmlIdInspection extends XmlSuppressableInspectionTool {
+    @Override
+    public void initialize(@NotNull GlobalInspectionContext context) {
+        super.initialize(context);
+        // batch inspection -> build hierarchies of the scope in parallel
+        WicketBatchAnalyzer.prepare(context);
+    }
+
     @NotNull
     @Override
     public PsiElementVisitor buildVisitor(@NotNull final ProblemsHolder holder, boolean isOnTheFly) {
@@ -44,11 +53,10 @@ public class HtmlIdInspection extends XmlSuppressableInspectionTool {
                 if (Constants.WICKET_ID.equals(attribute.getName())) {
                     XmlAttributeValue attributeValue = attribute.getValueElement();
                     if (attributeValue != null) {
-                        for (PsiReference reference : attributeValue.getReferences()) {
-                            if (reference instanceof MarkupWicketIdReference && ((MarkupWicketIdReference) reference).multiResolve(false).length == 0) {
-                                holder.registerProblem(holder.getManager().createProblemDescriptor(attributeValue, "Wicket id reference problem",
-                                        (LocalQuickFix) null, ProblemHighlightType.GENERIC_ERROR_OR_WARNING, true));
-                            }
+                        PsiElement[] targets = WicketResolveSnapshot.getInstance(holder.getFile()).resolve(attributeValue);
+                        if (targets != null && targets.length == 0) {
+                            holder.registerProblem(holder.getManager().createProblemDescriptor(attributeValue, "Wicket id reference problem",
+                                    (LocalQuickFix) null, ProblemHighlightType.GENERIC_ERROR_OR_WARNING, true));
                         }
                     }
                 }
@@ -16,6 +16,7 @@
 package wicketforge.inspection;
 
 import com.intellij.codeInspection.BaseJavaLocalInspectionTool;
+import com.intellij.codeInspection.GlobalInspectionContext;
 import com.intellij.codeInspection.LocalQuickFix;
 import com.intellij.codeInspection.ProblemHighlightType;
 import com.intellij.codeInspection.ProblemsHolder;
@@ -24,29 +25,51 @@ import org.jetbrains.annotations.Nls;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import wicketforge.Constants;
-import wicketforge.psi.references.ClassWicketIdReference;
+import wicketforge.psi.WicketBatchAnalyzer;
+import wicketforge.psi.WicketResolveSnapshot;
 
 /**
  */
 public class JavaIdInspection extends BaseJavaLocalInspectionTool {
+    @Override
+    public void initialize(@NotNull GlobalInspectionContext context) {
+        super.initialize(context);
+        // batch inspection -> build hierarchies of the scope in parallel
+        WicketBatchAnalyzer.prepare(context);
+    }
+
     @NotNull
     @Override
     public PsiElementVisitor buildVisitor(@NotNull final ProblemsHolder holder, boolean isOnTheFly) {
         return new JavaElementVisitor() {
             @Override
             public void visitReferenceExpression(PsiReferenceExpression expression) {
+                // wicketId can be a constant ex: new Label(ID_NAME)
+                checkWicketId(expression);
             }
 
             @Override
             public void visitExpression(PsiExpression expression) {
                 super.visitExpression(expression);
-                // ClassWicketIdReference are only available on PsiLiteralExpression
-                if (!(expression instanceof PsiLiteralExpression)) {
-                    return;
-                }
-                for (PsiReference reference : expression.getReferences()) {
-                    if (reference instanceof ClassWicketIdReference && reference.resolve() == null) {
-                        holder.registerProblem(holder.getManager().createProblemDescriptor(expression, "Wicket id reference problem",
+                checkWicketId(expression);
+            }
+
+            private void checkWicketId(@NotNull PsiExpression expression) {
+                // literals, constants and concatenations
+                WicketResolveSnapshot snapshot = WicketResolveSnapshot.getInstance(holder.getFile());
+                PsiElement[] targets = snapshot.resolve(expression);
+                if (targets != null && targets.length == 0) {
+                    holder.registerProblem(holder.getManager().createProblemDescriptor(expression, "Wicket id reference problem",
+                            (LocalQuickFix) null, ProblemHighlightType.GENERIC_ERROR_OR_WARNING, true));
+                } else if (targets != null) {
+                    // resolvable, but missing in some markup variations/styles/locales
+                    PsiFile[] missingFiles = snapshot.getMissingMarkupFiles(expression);
+                    if (missingFiles.length > 0) {
+                        StringBuilder sb = new StringBuilder("Wicket id missing in markup ");
+                        for (int i = 0; i < missingFiles.length; i++) {
+                            sb.append(i == 0 ? "" : ", ").append(missingFiles[i].getName());
+                        }
+                        holder.registerProblem(holder.getManager().createProblemDescriptor(expression, sb.toString(),
                                 (LocalQuickFix) null, ProblemHighlightType.GENERIC_ERROR_OR_WARNING, true));
                     }
                 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2010 The WicketForge-Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wicketforge.psi;
+
+import com.intellij.analysis.AnalysisScope;
+import com.intellij.codeInspection.GlobalInspectionContext;
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.*;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.SearchScope;
+import com.intellij.psi.search.searches.ClassInheritorsSearch;
+import com.intellij.psi.xml.XmlFile;
+import com.intellij.util.Processor;
+import org.jetbrains.annotations.NotNull;
+import wicketforge.Constants;
+import wicketforge.WicketForgeUtil;
+import wicketforge.facet.WicketForgeFacet;
+import wicketforge.psi.hierarchy.WicketForgeHierarchyCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the class and markup hierarchies of all pages and panels of an inspection scope in parallel.
+ * <p/>
+ * Used before batch inspections (Inspect Code): started when the inspections get initialized, before any file is
+ * inspected and outside of a read action, so the inspections of every file only look up the precomputed hierarchies
+ * instead of building them one after another. The project cache keeps the results until the next psi change,
+ * independent of its bounds.
+ */
+public final class WicketBatchAnalyzer {
+    private static final Logger LOG = Logger.getInstance("#wicketforge.psi.WicketBatchAnalyzer");
+    private static final Key<Boolean> ANALYZED_KEY = Key.create("WICKETFORGE_BATCH_ANALYZED"); // per inspection run
+
+    private WicketBatchAnalyzer() {
+    }
+
+    /**
+     * Analyzes the scope of the inspection run once (for all wicket inspections of the run).
+     *
+     * @param context   context of the inspection run
+     */
+    public static void prepare(@NotNull GlobalInspectionContext context) {
+        if (context.getUserData(ANALYZED_KEY) != null) {
+            return;
+        }
+        context.putUserData(ANALYZED_KEY, Boolean.TRUE);
+        AnalysisScope scope = context.getRefManager().getScope();
+        if (scope != null) {
+            analyze(context.getRefManager().getProject(), scope.toSearchScope());
+        }
+    }
+
+    /**
+     * Builds all hierarchies of pages and panels in scope (under the current progress).
+     *
+     * @param project   Project
+     * @param scope     scope of the classes to analyze
+     * @return          true if all hierarchies are built (not cancelled)
+     */
+    public static boolean analyze(@NotNull final Project project, @NotNull final SearchScope scope) {
+        long start = System.currentTimeMillis();
+        final List<PsiClass> classes = ApplicationManager.getApplication().runReadAction(new Computable<List<PsiClass>>() {
+            public List<PsiClass> compute() {
+                final List<PsiClass> result = new ArrayList<PsiClass>();
+                PsiClass componentClass = JavaPsiFacade.getInstance(project).findClass(Constants.WICKET_COMPONENT, GlobalSearchScope.allScope(project));
+                if (componentClass != null) {
+                    ClassInheritorsSearch.search(componentClass, scope, true).forEach(new Processor<PsiClass>() {
+                        public boolean process(PsiClass psiClass) {
+                            if (!(psiClass instanceof PsiAnonymousClass) && WicketForgeFacet.hasFacetOrIsFromLibrary(psiClass)
+                                    && WicketForgeUtil.isWicketComponentWithAssociatedMarkup(psiClass)) {
+                                result.add(psiClass);
+                            }
+                            return true;
+                        }
+                    });
+                }
+                return result;
+            }
+        });
+        if (classes.isEmpty()) {
+            return true;
+        }
+
+        final WicketForgeHierarchyCache cache = WicketForgeHierarchyCache.getInstance(project);
+        cache.keepUntilPsiChange();
+        boolean completed = JobLauncher.getInstance().invokeConcurrentlyUnderProgress(classes, ProgressManager.getInstance().getProgressIndicator(), true, new Processor<PsiClass>() {
+            public boolean process(final PsiClass psiClass) {
+                ApplicationManager.getApplication().runReadAction(new Runnable() {
+                    public void run() {
+                        if (!psiClass.isValid()) {
+                            return;
+                        }
+                        cache.getClassHierarchy(psiClass);
+                        for (PsiFile markupFile : WicketForgeUtil.getMarkupFiles(psiClass)) {
+                            if (markupFile instanceof XmlFile) {
+                                cache.getMarkupHierarchy((XmlFile) markupFile);
+                            }
+                        }
+                    }
+                });
+                return true;
+            }
+        });
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("batch analysis: " + classes.size() + " classes in " + (System.currentTimeMillis() - start) + "ms" + (completed ? "" : " (not completed)"));
+        }
+        return completed;
+    }
+}
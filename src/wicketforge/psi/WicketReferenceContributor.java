@@ -27,12 +27,14 @@ public class WicketReferenceContributor extends PsiReferenceContributor {
     @Override
     public void registerReferenceProviders(PsiReferenceRegistrar registrar) {
 
-        {// java -> new Component("..." ...)
+        {// java -> new Component("..." ...) or component factory method createComponent("...")
             ElementPattern<PsiLiteralExpression> pattern = StandardPatterns.or(
                     //
                     PsiJavaPatterns.psiElement(PsiLiteralExpression.class).withParent(PsiExpressionList.class).withSuperParent(2, PsiNewExpression.class),
                     // for Anonymous create like Link's...
-                    PsiJavaPatterns.psiElement(PsiLiteralExpression.class).withParent(PsiExpressionList.class).withSuperParent(2, PsiAnonymousClass.class).withSuperParent(3, PsiNewExpression.class)
+                    PsiJavaPatterns.psiElement(PsiLiteralExpression.class).withParent(PsiExpressionList.class).withSuperParent(2, PsiAnonymousClass.class).withSuperParent(3, PsiNewExpression.class),
+                    // factory methods
+                    PsiJavaPatterns.psiElement(PsiLiteralExpression.class).withParent(PsiExpressionList.class).withSuperParent(2, PsiMethodCallExpression.class)
             );
             registrar.registerReferenceProvider(pattern, new ClassWicketIdReferenceProvider());
         }
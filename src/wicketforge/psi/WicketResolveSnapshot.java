@@ -0,0 +1,235 @@
+/*
+ * Copyright 2010 The WicketForge-Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wicketforge.psi;
+
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.*;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.psi.xml.XmlAttribute;
+import com.intellij.psi.xml.XmlAttributeValue;
+import com.intellij.psi.xml.XmlFile;
+import com.intellij.util.SmartList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import wicketforge.Constants;
+import wicketforge.WicketForgeUtil;
+import wicketforge.facet.WicketForgeFacet;
+import wicketforge.psi.hierarchy.CompactHierarchy;
+import wicketforge.psi.hierarchy.ComponentUsers;
+import wicketforge.psi.hierarchy.WicketClassHierarchy;
+import wicketforge.psi.hierarchy.WicketForgeHierarchyCache;
+import wicketforge.psi.hierarchy.WicketMarkupHierarchy;
+import wicketforge.psi.references.ClassWicketIdReferenceProvider;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolution of all wicketIds of a file, shared by highlighting and inspections.
+ * <p/>
+ * One snapshot exists per file and modification, results are computed on first request per wicketId element (and
+ * only kept for elements with a wicketId reference).
+ * WicketIds of classes resolve against all markup variations/styles/locales of the class.
+ * Same rules like {@link wicketforge.psi.references.ClassWicketIdReference} and
+ * {@link wicketforge.psi.references.MarkupWicketIdReference}, but without creating references for every element.
+ */
+public final class WicketResolveSnapshot {
+    private static final Key<CachedValue<WicketResolveSnapshot>> SNAPSHOT_KEY = Key.create("WICKET_RESOLVE_SNAPSHOT");
+    private static final PsiElement[] NOT_REFERENCED = new PsiElement[0]; // marker (compared by identity)
+    private static final String BORDER_BODY_PATH = "" + Constants.HIERARCHYSEPARATOR + Constants.WICKET_BODY + Constants.HIERARCHYSEPARATOR;
+
+    private final PsiFile file;
+    private final Map<PsiElement, PsiElement[]> resolved = new ConcurrentHashMap<PsiElement, PsiElement[]>();
+    private final Map<PsiElement, PsiFile[]> missing = new ConcurrentHashMap<PsiElement, PsiFile[]>(); // markup variations without the wicketId
+    private volatile PsiClass markupClass; // only for markup files
+    private volatile boolean markupClassResolved;
+
+    private WicketResolveSnapshot(@NotNull PsiFile file) {
+        this.file = file;
+    }
+
+    @NotNull
+    public static WicketResolveSnapshot getInstance(@NotNull final PsiFile file) {
+        return CachedValuesManager.getManager(file.getProject()).getCachedValue(file, SNAPSHOT_KEY, new CachedValueProvider<WicketResolveSnapshot>() {
+            public Result<WicketResolveSnapshot> compute() {
+                // resolution depends on markup and java files -> any psi change
+                return Result.create(new WicketResolveSnapshot(file), PsiModificationTracker.MODIFICATION_COUNT);
+            }
+        }, false);
+    }
+
+    /**
+     * @param wicketIdElement   wicketId expression (java, literal or constant) or wicket:id attribute value (markup) of this file
+     * @return                  null if element has no wicketId reference, else the resolved elements (empty if not resolvable)
+     */
+    @Nullable
+    public PsiElement[] resolve(@NotNull PsiElement wicketIdElement) {
+        PsiElement[] result = resolved.get(wicketIdElement);
+        if (result == null) {
+            if (wicketIdElement instanceof XmlAttributeValue) {
+                result = resolveMarkupWicketId((XmlAttributeValue) wicketIdElement);
+            } else if (wicketIdElement instanceof PsiExpression) {
+                result = resolveClassWicketId((PsiExpression) wicketIdElement);
+            } else {
+                result = NOT_REFERENCED;
+            }
+            if (result != NOT_REFERENCED) {
+                // only wicketIds, not every (cheap to reject) literal or attribute value
+                resolved.put(wicketIdElement, result);
+            }
+        }
+        return result == NOT_REFERENCED ? null : result;
+    }
+
+    /**
+     * @param wicketIdElement   wicketId expression (java, literal or constant) of this file
+     * @return                  markup files (variations/styles/locales) the wicketId is missing in, while it's
+     *                          resolvable in other markup files of the same class (for border bodies: of the
+     *                          classes using the border)
+     */
+    @NotNull
+    public PsiFile[] getMissingMarkupFiles(@NotNull PsiElement wicketIdElement) {
+        resolve(wicketIdElement);
+        PsiFile[] result = missing.get(wicketIdElement);
+        return result == null ? PsiFile.EMPTY_ARRAY : result;
+    }
+
+    @NotNull
+    private PsiElement[] resolveMarkupWicketId(@NotNull XmlAttributeValue attributeValue) {
+        PsiElement parent = attributeValue.getParent();
+        if (!(file instanceof XmlFile) || !(parent instanceof XmlAttribute) || !Constants.WICKET_ID.equals(((XmlAttribute) parent).getName())) {
+            return NOT_REFERENCED;
+        }
+        PsiClass psiClass = getMarkupClass();
+        if (psiClass == null) {
+            return NOT_REFERENCED;
+        }
+        String path = WicketMarkupHierarchy.create((XmlFile) file).getPathOf(attributeValue);
+        if (path != null) {
+            // other side from project cache (class hierarchy could be of a closed file)
+            CompactHierarchy hierarchy = WicketForgeHierarchyCache.getInstance(file.getProject()).getClassHierarchy(psiClass);
+            int node = hierarchy.findNode(path);
+            if (node != CompactHierarchy.NONE) {
+                List<PsiElement> result = new SmartList<PsiElement>();
+                for (int i = 0; i < hierarchy.getReferenceCount(node); i++) {
+                    PsiElement element = hierarchy.findReferenceElement(file.getManager(), node, i);
+                    if (element != null) {
+                        result.add(element);
+                    }
+                }
+                return result.toArray(new PsiElement[result.size()]);
+            }
+        }
+        return PsiElement.EMPTY_ARRAY;
+    }
+
+    @NotNull
+    private PsiElement[] resolveClassWicketId(@NotNull PsiExpression wicketIdExpression) {
+        PsiClass wicketClass = ClassWicketIdReferenceProvider.getWicketClass(wicketIdExpression);
+        if (wicketClass == null) {
+            return NOT_REFERENCED;
+        }
+        List<PsiFile> markupFiles = WicketForgeUtil.getMarkupFiles(wicketClass);
+        if (markupFiles.isEmpty()) {
+            return NOT_REFERENCED;
+        }
+        String path = WicketClassHierarchy.create(wicketClass).getPathOf(wicketIdExpression);
+        if (path != null && path.startsWith(BORDER_BODY_PATH)) {
+            return resolveBorderBodyWicketId(wicketIdExpression, wicketClass, markupFiles);
+        }
+        if (path != null) {
+            // every variation/style/locale needs the wicketId
+            List<PsiElement> result = new SmartList<PsiElement>();
+            List<PsiFile> missingFiles = new SmartList<PsiFile>();
+            resolveInMarkupFiles(markupFiles, path, result, missingFiles);
+            return toResult(wicketIdExpression, result, missingFiles);
+        }
+        // not part of hierarchy: unresolvable if it's a wicketId (literal or constant), else (ex: variable) we cant tell
+        return WicketForgeUtil.getWicketIdFromExpression(wicketIdExpression) != null ? PsiElement.EMPTY_ARRAY : NOT_REFERENCED;
+    }
+
+    /**
+     * Added to the body of a border: part of the markup of the classes using the border ex 'new MyBorder("border")'.
+     */
+    @NotNull
+    private PsiElement[] resolveBorderBodyWicketId(@NotNull PsiExpression wicketIdExpression, @NotNull PsiClass borderClass, @NotNull List<PsiFile> markupFiles) {
+        List<PsiElement> result = new SmartList<PsiElement>();
+        List<PsiFile> missingFiles = new SmartList<PsiFile>();
+        // border markup without <wicket:body> can't render the body
+        for (PsiFile markupFile : markupFiles) {
+            if (!(markupFile instanceof XmlFile) || WicketMarkupHierarchy.create((XmlFile) markupFile).getBodyPath() == null) {
+                missingFiles.add(markupFile);
+            }
+        }
+        boolean used = false;
+        for (PsiClass userClass : ComponentUsers.getCreatingClasses(borderClass)) {
+            // the body is composed into the hierarchy of the user
+            String userPath = WicketClassHierarchy.create(userClass).getPathOf(wicketIdExpression);
+            if (userPath != null) {
+                used = true;
+                resolveInMarkupFiles(WicketForgeUtil.getMarkupFiles(userClass), userPath, result, missingFiles);
+            }
+        }
+        if (!used) {
+            // no user -> we cant tell
+            return missingFiles.isEmpty() ? NOT_REFERENCED : PsiElement.EMPTY_ARRAY;
+        }
+        return toResult(wicketIdExpression, result, missingFiles);
+    }
+
+    /**
+     * Resolves path in all markup files, from project cache (markup could be a closed file).
+     */
+    private void resolveInMarkupFiles(@NotNull List<PsiFile> markupFiles, @NotNull String path, @NotNull List<PsiElement> result, @NotNull List<PsiFile> missingFiles) {
+        WicketForgeHierarchyCache cache = WicketForgeHierarchyCache.getInstance(file.getProject());
+        for (PsiFile markupFile : markupFiles) {
+            PsiElement element = null;
+            if (markupFile instanceof XmlFile) {
+                CompactHierarchy hierarchy = cache.getMarkupHierarchy((XmlFile) markupFile);
+                int node = hierarchy.findNode(path);
+                if (node != CompactHierarchy.NONE && hierarchy.getReferenceCount(node) > 0) {
+                    element = hierarchy.findReferenceElement(file.getManager(), node, 0);
+                }
+            }
+            if (element != null) {
+                result.add(element);
+            } else {
+                missingFiles.add(markupFile);
+            }
+        }
+    }
+
+    @NotNull
+    private PsiElement[] toResult(@NotNull PsiExpression wicketIdExpression, @NotNull List<PsiElement> result, @NotNull List<PsiFile> missingFiles) {
+        if (!result.isEmpty() && !missingFiles.isEmpty()) {
+            missing.put(wicketIdExpression, missingFiles.toArray(new PsiFile[missingFiles.size()]));
+        }
+        return result.toArray(new PsiElement[result.size()]);
+    }
+
+    @Nullable
+    private PsiClass getMarkupClass() {
+        if (!markupClassResolved) {
+            markupClass = WicketForgeFacet.hasFacetOrIsFromLibrary(file) ? WicketForgeUtil.getMarkupClass(file) : null;
+            markupClassResolved = true;
+        }
+        return markupClass;
+    }
+}
@@ -28,15 +28,20 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+/**
+ * Item of a {@link WicketMarkupHierarchy}, only modified while the hierarchy is built.
+ */
 public final class AttributeItem implements ItemPresentation {
-    private String wicketId;
-    private XmlAttribute attribute;
-    private XmlAttributeValue attributeValue;
+    private final String wicketId;
+    private final XmlAttribute attribute;
+    private final XmlAttributeValue attributeValue;
     private List<AttributeItem> childs;
 
     // for root
     AttributeItem() {
         this.wicketId = "";
+        this.attribute = null;
+        this.attributeValue = null;
     }
 
     AttributeItem(@NotNull String wicketId, @NotNull XmlAttribute attribute, @NotNull XmlAttributeValue attributeValue) {
@@ -45,6 +50,23 @@ public final class AttributeItem implements ItemPresentation {
         this.attributeValue = attributeValue;
     }
 
+    // copy of item (for merging markup inheritance), childs are shared
+    AttributeItem(@NotNull AttributeItem item) {
+        this.wicketId = item.wicketId;
+        this.attribute = item.attribute;
+        this.attributeValue = item.attributeValue;
+        this.childs = item.childs == null ? null : new ArrayList<AttributeItem>(item.childs);
+    }
+
+    void replaceChild(@NotNull AttributeItem child, @NotNull AttributeItem replacement) {
+        int index = childs == null ? -1 : childs.indexOf(child);
+        if (index < 0) {
+            addChild(replacement);
+        } else {
+            childs.set(index, replacement);
+        }
+    }
+
     void addChild(@NotNull AttributeItem child) {
         if (childs == null) {
             childs = new ArrayList<AttributeItem>();
@@ -69,7 +91,7 @@ public final class AttributeItem implements ItemPresentation {
 
     @NotNull
     public List<AttributeItem> getChilds() {
-        return childs == null ? Collections.<AttributeItem>emptyList() : childs;
+        return childs == null ? Collections.<AttributeItem>emptyList() : Collections.unmodifiableList(childs);
     }
 
     /* ItemPresentation*/
@@ -78,7 +100,7 @@ public final class AttributeItem implements ItemPresentation {
         return wicketId;
     }
 
-    private String location;
+    private volatile String location; // lazy, concurrent computing is fine (same result)
     public String getLocationString() {
         if (attribute != null && location == null) {
             location = new StringBuilder().append('<').append(attribute.getParent().getName()).append('>').toString();
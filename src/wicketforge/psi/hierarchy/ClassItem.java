@@ -19,6 +19,7 @@ import com.intellij.navigation.ItemPresentation;
 import com.intellij.openapi.editor.colors.TextAttributesKey;
 import com.intellij.psi.*;
 import com.intellij.util.SmartList;
+import gnu.trove.TIntArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import wicketforge.Constants;
@@ -29,9 +30,14 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+/**
+ * Item of a {@link WicketClassHierarchy}, only modified while the hierarchy is built.
+ */
 public final class ClassItem implements ItemPresentation {
-    private String wicketId;
-    private List<NewComponentReference> references;
+    private final String wicketId;
+    private final List<NewComponentReference> references;
+    private List<String> libraryReferenceUrls; // references composed from a (persisted) library hierarchy: file url and offset
+    private TIntArrayList libraryReferenceOffsets;
     private List<ClassItem> childs;
 
     ClassItem(@NotNull String wicketId) {
@@ -51,6 +57,19 @@ public final class ClassItem implements ItemPresentation {
         return null;
     }
 
+    void addReference(@NotNull NewComponentReference reference) {
+        references.add(reference);
+    }
+
+    void addLibraryReference(@NotNull String url, int offset) {
+        if (libraryReferenceUrls == null) {
+            libraryReferenceUrls = new SmartList<String>();
+            libraryReferenceOffsets = new TIntArrayList(1);
+        }
+        libraryReferenceUrls.add(url);
+        libraryReferenceOffsets.add(offset);
+    }
+
     void addChild(@NotNull ClassItem child) {
         if (childs == null) {
             childs = new ArrayList<ClassItem>();
@@ -65,12 +84,29 @@ public final class ClassItem implements ItemPresentation {
 
     @NotNull
     public List<NewComponentReference> getReferences() {
-        return references;
+        return Collections.unmodifiableList(references);
+    }
+
+    /**
+     * @return count of references composed from a library hierarchy, they are not part of {@link #getReferences()},
+     *         see {@link CompactHierarchy#findReferenceElement(PsiManager, String, int)}
+     */
+    public int getLibraryReferenceCount() {
+        return libraryReferenceUrls == null ? 0 : libraryReferenceUrls.size();
+    }
+
+    @NotNull
+    public String getLibraryReferenceUrl(int index) {
+        return libraryReferenceUrls.get(index);
+    }
+
+    public int getLibraryReferenceOffset(int index) {
+        return libraryReferenceOffsets.get(index);
     }
 
     @NotNull
     public List<ClassItem> getChilds() {
-        return childs == null ? Collections.<ClassItem>emptyList() : childs;
+        return childs == null ? Collections.<ClassItem>emptyList() : Collections.unmodifiableList(childs);
     }
 
     /* ItemPresentation */
@@ -79,7 +115,7 @@ public final class ClassItem implements ItemPresentation {
         return wicketId;
     }
 
-    private String location;
+    private volatile String location; // lazy, concurrent computing is fine (same result)
     public String getLocationString() {
         if (location == null) {
             boolean first = true;
@@ -112,25 +148,45 @@ public final class ClassItem implements ItemPresentation {
      *
      */
     public static final class NewComponentReference {
-        private PsiNewExpression newExpression;
-        private PsiExpression wicketIdExpression;
-        private String wicketId;
-        private PsiClass baseClassToCreate;
+        private final PsiNewExpression newExpression;
+        private final PsiExpression wicketIdExpression;
+        private final String wicketId;
+        private final PsiClass baseClassToCreate;
+        private final String fragmentMarkupId;
+        private final PsiClass fragmentMarkupProvider;
 
-        private NewComponentReference() {
+        private NewComponentReference(@NotNull PsiNewExpression newExpression, @NotNull PsiExpression wicketIdExpression,
+                                      @NotNull String wicketId, @NotNull PsiClass baseClassToCreate, @Nullable String fragmentMarkupId,
+                                      @Nullable PsiClass fragmentMarkupProvider) {
+            this.newExpression = newExpression;
+            this.wicketIdExpression = wicketIdExpression;
+            this.wicketId = wicketId;
+            this.baseClassToCreate = baseClassToCreate;
+            this.fragmentMarkupId = fragmentMarkupId;
+            this.fragmentMarkupProvider = fragmentMarkupProvider;
         }
 
         @Nullable
-        static NewComponentReference create(@NotNull PsiNewExpression newExpression) {
-            NewComponentReference result = new NewComponentReference();
+        static NewComponentReference create(@NotNull PsiNewExpression newExpression, @NotNull WicketIdEvaluator wicketIdEvaluator) {
+            return create(newExpression, WicketForgeUtil.getWicketIdExpressionFromArguments(newExpression), wicketIdEvaluator);
+        }
 
-            result.newExpression = newExpression;
-            result.wicketIdExpression = WicketForgeUtil.getWicketIdExpressionFromArguments(newExpression);
-            if (result.wicketIdExpression == null) {
+        /**
+         * @param callExpression    call of a component factory method ex: 'createNameField("name")'
+         * @param entry             component created by the factory method
+         */
+        @Nullable
+        static NewComponentReference create(@NotNull PsiMethodCallExpression callExpression, @NotNull ComponentFactorySummary.Entry entry, @NotNull WicketIdEvaluator wicketIdEvaluator) {
+            return create(entry.getNewExpression(), entry.getWicketIdExpression(callExpression), wicketIdEvaluator);
+        }
+
+        @Nullable
+        private static NewComponentReference create(@NotNull PsiNewExpression newExpression, @Nullable PsiExpression wicketIdExpression, @NotNull WicketIdEvaluator wicketIdEvaluator) {
+            if (wicketIdExpression == null) {
                 return null;
             }
-            result.wicketId = WicketForgeUtil.getWicketIdFromExpression(result.wicketIdExpression);
-            if (result.wicketId == null) {
+            String wicketId = wicketIdEvaluator.evaluate(wicketIdExpression);
+            if (wicketId == null) {
                 return null;
             }
             PsiJavaCodeReferenceElement referenceElement = newExpression.getClassOrAnonymousClassReference();
@@ -141,8 +197,48 @@ public final class ClassItem implements ItemPresentation {
             if (!(resolvedElement instanceof PsiClass)) {
                 return null;
             }
-            result.baseClassToCreate = (PsiClass) resolvedElement;
-            return result;
+            PsiClass baseClassToCreate = (PsiClass) resolvedElement;
+            String fragmentMarkupId = null;
+            PsiClass fragmentMarkupProvider = null;
+            if (WicketForgeUtil.isWicketFragment(baseClassToCreate)) {
+                // ex: new Fragment("id", "markupId", this)
+                PsiExpressionList argumentList = newExpression.getArgumentList();
+                PsiExpression[] arguments = argumentList == null ? PsiExpression.EMPTY_ARRAY : argumentList.getExpressions();
+                if (arguments.length > 1) {
+                    fragmentMarkupId = wicketIdEvaluator.evaluate(arguments[1]);
+                }
+                if (arguments.length > 2) {
+                    fragmentMarkupProvider = getMarkupProviderClass(arguments[2]);
+                }
+            }
+            return new NewComponentReference(newExpression, wicketIdExpression, wicketId, baseClassToCreate, fragmentMarkupId, fragmentMarkupProvider);
+        }
+
+        /**
+         * @param markupProvider    markupProvider argument of a Fragment ex 'MyPanel.this' or 'myPanel'
+         * @return                  class with associated markup of the markupProvider or null if it is 'this' or
+         *                          unknown (then the fragment belongs to the markup of the enclosing class)
+         */
+        @Nullable
+        private static PsiClass getMarkupProviderClass(@NotNull PsiExpression markupProvider) {
+            PsiClass providerClass = null;
+            if (markupProvider instanceof PsiThisExpression) {
+                PsiJavaCodeReferenceElement qualifier = ((PsiThisExpression) markupProvider).getQualifier();
+                PsiElement resolved = qualifier == null ? null : qualifier.resolve();
+                if (resolved instanceof PsiClass) {
+                    providerClass = (PsiClass) resolved;
+                }
+            } else {
+                PsiType type = markupProvider.getType();
+                if (type instanceof PsiClassType) {
+                    providerClass = ((PsiClassType) type).resolve();
+                }
+            }
+            if (providerClass == null || !WicketForgeUtil.isWicketComponentWithAssociatedMarkup(providerClass)) {
+                return null;
+            }
+            String qualifiedName = providerClass.getQualifiedName();
+            return qualifiedName == null || qualifiedName.startsWith("org.apache.wicket.") ? null : providerClass; // ex getPage(): we cant tell
         }
 
         @NotNull
@@ -167,5 +263,22 @@ public final class ClassItem implements ItemPresentation {
         public PsiClass getBaseClassToCreate() {
             return baseClassToCreate;
         }
+
+        /**
+         * @return  markupId of the &lt;wicket:fragment&gt; if a Fragment is created or null
+         */
+        @Nullable
+        public String getFragmentMarkupId() {
+            return fragmentMarkupId;
+        }
+
+        /**
+         * @return  class whose markup contains the &lt;wicket:fragment&gt; if it is passed as markupProvider of the
+         *          Fragment, null for 'this', no or an unknown markupProvider
+         */
+        @Nullable
+        public PsiClass getFragmentMarkupProvider() {
+            return fragmentMarkupProvider;
+        }
     }
 }
\ No newline at end of file
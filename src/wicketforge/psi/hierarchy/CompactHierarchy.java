@@ -0,0 +1,382 @@
+/*
+ * Copyright 2010 The WicketForge-Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wicketforge.psi.hierarchy;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiExpression;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.psi.xml.XmlAttributeValue;
+import gnu.trove.TIntArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import wicketforge.Constants;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable compact form of a {@link WicketClassHierarchy} or {@link WicketMarkupHierarchy}.
+ * <p/>
+ * Nodes are indices (0 is the root) into parallel int arrays for parent/first-child/next-sibling. Wicket ids are
+ * interned and references are stored as file url and text offset instead of PSI elements, so a compact hierarchy
+ * does not hold any PSI and can be shared between threads. Paths are computed on request.
+ */
+public final class CompactHierarchy {
+    public static final int ROOT = 0;
+    public static final int NONE = -1;
+
+    private final String[] wicketIds;
+    private final int[] parents;
+    private final int[] firstChilds;
+    private final int[] nextSiblings;
+    // references of node n are referenceOffsets[referenceStarts[n]..referenceStarts[n + 1]-1]
+    private final int[] referenceStarts;
+    private final int[] referenceOffsets; // start offset of wicketId expression/attribute value
+    private final int[] referenceFiles; // index into fileUrls
+    private final String[] fileUrls;
+    private int structureHash; // lazy, 0 if not computed yet
+
+    private CompactHierarchy(@NotNull String[] wicketIds, @NotNull int[] parents, @NotNull int[] firstChilds, @NotNull int[] nextSiblings,
+                             @NotNull int[] referenceStarts, @NotNull int[] referenceOffsets, @NotNull int[] referenceFiles, @NotNull String[] fileUrls) {
+        this.wicketIds = wicketIds;
+        this.parents = parents;
+        this.firstChilds = firstChilds;
+        this.nextSiblings = nextSiblings;
+        this.referenceStarts = referenceStarts;
+        this.referenceOffsets = referenceOffsets;
+        this.referenceFiles = referenceFiles;
+        this.fileUrls = fileUrls;
+    }
+
+    @NotNull
+    public static CompactHierarchy create(@NotNull WicketClassHierarchy hierarchy) {
+        Builder builder = new Builder();
+        builder.addClassItem(hierarchy.getRoot(), NONE);
+        return builder.build();
+    }
+
+    @NotNull
+    public static CompactHierarchy create(@NotNull WicketMarkupHierarchy hierarchy) {
+        Builder builder = new Builder();
+        builder.addAttributeItem(hierarchy.getRoot(), NONE);
+        return builder.build();
+    }
+
+    public int getNodeCount() {
+        return wicketIds.length;
+    }
+
+    @NotNull
+    public String getWicketId(int node) {
+        return wicketIds[node];
+    }
+
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    public int getFirstChild(int node) {
+        return firstChilds[node];
+    }
+
+    public int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    /**
+     * @return child node with wicketId or {@link #NONE}
+     */
+    public int findChild(int node, @NotNull String wicketId) {
+        for (int child = firstChilds[node]; child != NONE; child = nextSiblings[child]) {
+            if (wicketId.equals(wicketIds[child])) {
+                return child;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * @param path  hierarchy path ex '#form#name' ("" for root)
+     * @return      node of path or {@link #NONE}
+     */
+    public int findNode(@NotNull String path) {
+        int node = ROOT;
+        int start = 0;
+        while (node != NONE && start < path.length()) {
+            if (path.charAt(start) != Constants.HIERARCHYSEPARATOR) {
+                return NONE;
+            }
+            int end = path.indexOf(Constants.HIERARCHYSEPARATOR, start + 1);
+            if (end < 0) {
+                end = path.length();
+            }
+            node = findChild(node, path.substring(start + 1, end));
+            start = end;
+        }
+        return node;
+    }
+
+    /**
+     * @return hierarchy path of node ex '#form#name'
+     */
+    @NotNull
+    public String getPath(int node) {
+        if (node == ROOT) {
+            return "";
+        }
+        return getPath(parents[node]) + Constants.HIERARCHYSEPARATOR + wicketIds[node];
+    }
+
+    public int getReferenceCount(int node) {
+        return referenceStarts[node + 1] - referenceStarts[node];
+    }
+
+    public int getReferenceOffset(int node, int index) {
+        return referenceOffsets[referenceStarts[node] + index];
+    }
+
+    @Nullable
+    public String getReferenceFileUrl(int node, int index) {
+        int file = referenceFiles[referenceStarts[node] + index];
+        return file == NONE ? null : fileUrls[file];
+    }
+
+    /**
+     * @return hash of the wicketIds and their nesting (references not included), changes if a path is added or removed
+     */
+    public int getStructureHash() {
+        int hash = structureHash;
+        if (hash == 0) {
+            hash = 1;
+            for (int node = 0; node < wicketIds.length; node++) {
+                hash = 31 * (31 * hash + wicketIds[node].hashCode()) + parents[node];
+            }
+            structureHash = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * @return estimated memory usage in bytes (interned wicketIds and file urls not included)
+     */
+    public long getEstimatedSize() {
+        return 4L * (parents.length + firstChilds.length + nextSiblings.length + referenceStarts.length + referenceOffsets.length + referenceFiles.length)
+                + 4L * (wicketIds.length + fileUrls.length) // references
+                + 8 * 16; // headers of arrays and this
+    }
+
+    /**
+     * Writes this hierarchy, see {@link #read(DataInput)}.
+     */
+    public void write(@NotNull DataOutput out) throws IOException {
+        out.writeInt(wicketIds.length);
+        for (int node = 0; node < wicketIds.length; node++) {
+            out.writeUTF(wicketIds[node]);
+            out.writeInt(parents[node]);
+            out.writeInt(firstChilds[node]);
+            out.writeInt(nextSiblings[node]);
+        }
+        writeInts(out, referenceStarts);
+        writeInts(out, referenceOffsets);
+        writeInts(out, referenceFiles);
+        out.writeInt(fileUrls.length);
+        for (String fileUrl : fileUrls) {
+            out.writeUTF(fileUrl);
+        }
+    }
+
+    /**
+     * @return hierarchy written by {@link #write(DataOutput)}
+     */
+    @NotNull
+    public static CompactHierarchy read(@NotNull DataInput in) throws IOException {
+        int nodeCount = in.readInt();
+        String[] wicketIds = new String[nodeCount];
+        int[] parents = new int[nodeCount];
+        int[] firstChilds = new int[nodeCount];
+        int[] nextSiblings = new int[nodeCount];
+        for (int node = 0; node < nodeCount; node++) {
+            wicketIds[node] = in.readUTF().intern();
+            parents[node] = in.readInt();
+            firstChilds[node] = in.readInt();
+            nextSiblings[node] = in.readInt();
+        }
+        int[] referenceStarts = readInts(in);
+        int[] referenceOffsets = readInts(in);
+        int[] referenceFiles = readInts(in);
+        String[] fileUrls = new String[in.readInt()];
+        for (int i = 0; i < fileUrls.length; i++) {
+            fileUrls[i] = in.readUTF();
+        }
+        if (nodeCount == 0 || referenceStarts.length != nodeCount + 1 || referenceOffsets.length != referenceFiles.length) {
+            throw new IOException("Corrupted hierarchy");
+        }
+        return new CompactHierarchy(wicketIds, parents, firstChilds, nextSiblings, referenceStarts, referenceOffsets, referenceFiles, fileUrls);
+    }
+
+    private static void writeInts(@NotNull DataOutput out, @NotNull int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    @NotNull
+    private static int[] readInts(@NotNull DataInput in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    /**
+     * @param psiManager    PsiManager
+     * @param node          node
+     * @param index         index of reference
+     * @return              wicketId expression (class hierarchy) or attribute value (markup hierarchy) of the reference
+     *                      or null if file does not exist anymore or has changed
+     */
+    @Nullable
+    public PsiElement findReferenceElement(@NotNull PsiManager psiManager, int node, int index) {
+        String url = getReferenceFileUrl(node, index);
+        return url == null ? null : findReferenceElement(psiManager, url, getReferenceOffset(node, index));
+    }
+
+    /**
+     * @param psiManager    PsiManager
+     * @param url           url of the file of a reference
+     * @param offset        start offset of the reference
+     * @return              wicketId expression (class hierarchy) or attribute value (markup hierarchy) of the reference
+     *                      or null if file does not exist anymore or has changed
+     */
+    @Nullable
+    public static PsiElement findReferenceElement(@NotNull PsiManager psiManager, @NotNull String url, int offset) {
+        VirtualFile virtualFile = VirtualFileManager.getInstance().findFileByUrl(url);
+        PsiFile psiFile = virtualFile == null ? null : psiManager.findFile(virtualFile);
+        if (psiFile == null) {
+            return null;
+        }
+        PsiElement element = psiFile.findElementAt(offset);
+        //noinspection unchecked
+        element = PsiTreeUtil.getParentOfType(element, false, PsiExpression.class, XmlAttributeValue.class);
+        if (element == null || element.getTextRange().getStartOffset() != offset) {
+            return null;
+        }
+        // outer most expression starting at offset ex: concatenation "a" + B
+        while (element.getParent() instanceof PsiExpression && element.getParent().getTextRange().getStartOffset() == offset) {
+            element = element.getParent();
+        }
+        return element;
+    }
+
+    private static final class Builder {
+        private final List<String> wicketIds = new ArrayList<String>();
+        private final TIntArrayList parents = new TIntArrayList();
+        private final TIntArrayList firstChilds = new TIntArrayList();
+        private final TIntArrayList nextSiblings = new TIntArrayList();
+        private final TIntArrayList referenceStarts = new TIntArrayList();
+        private final TIntArrayList referenceOffsets = new TIntArrayList();
+        private final TIntArrayList referenceFiles = new TIntArrayList();
+        private final Map<String, Integer> fileIndices = new HashMap<String, Integer>();
+        private final List<String> fileUrls = new ArrayList<String>();
+        private int lastChild = NONE; // last added child of parent while adding children
+
+        private int addNode(@NotNull String wicketId, int parent) {
+            int node = wicketIds.size();
+            wicketIds.add(wicketId.intern());
+            parents.add(parent);
+            firstChilds.add(NONE);
+            nextSiblings.add(NONE);
+            referenceStarts.add(referenceOffsets.size());
+            if (parent != NONE) {
+                if (lastChild == NONE) {
+                    firstChilds.set(parent, node);
+                } else {
+                    nextSiblings.set(lastChild, node);
+                }
+            }
+            return node;
+        }
+
+        private void addReference(@NotNull PsiElement element) {
+            PsiFile psiFile = element.getContainingFile();
+            VirtualFile virtualFile = psiFile == null ? null : psiFile.getVirtualFile();
+            addReference(virtualFile == null ? null : virtualFile.getUrl(), element.getTextRange().getStartOffset());
+        }
+
+        private void addReference(@Nullable String url, int offset) {
+            int file = NONE;
+            if (url != null) {
+                Integer index = fileIndices.get(url);
+                if (index == null) {
+                    index = fileUrls.size();
+                    fileIndices.put(url, index);
+                    fileUrls.add(url);
+                }
+                file = index;
+            }
+            referenceOffsets.add(offset);
+            referenceFiles.add(file);
+        }
+
+        private int addClassItem(@NotNull ClassItem item, int parent) {
+            int node = addNode(item.getWicketId(), parent);
+            for (ClassItem.NewComponentReference reference : item.getReferences()) {
+                addReference(reference.getWicketIdExpression());
+            }
+            for (int i = 0; i < item.getLibraryReferenceCount(); i++) {
+                addReference(item.getLibraryReferenceUrl(i), item.getLibraryReferenceOffset(i));
+            }
+            lastChild = NONE;
+            for (ClassItem child : item.getChilds()) {
+                int childNode = addClassItem(child, node);
+                lastChild = childNode;
+            }
+            return node;
+        }
+
+        private int addAttributeItem(@NotNull AttributeItem item, int parent) {
+            int node = addNode(item.getWicketId(), parent);
+            if (item.getAttributeValue() != null) {
+                addReference(item.getAttributeValue());
+            }
+            lastChild = NONE;
+            for (AttributeItem child : item.getChilds()) {
+                int childNode = addAttributeItem(child, node);
+                lastChild = childNode;
+            }
+            return node;
+        }
+
+        @NotNull
+        private CompactHierarchy build() {
+            referenceStarts.add(referenceOffsets.size()); // end of last node
+            return new CompactHierarchy(wicketIds.toArray(new String[wicketIds.size()]), parents.toNativeArray(), firstChilds.toNativeArray(),
+                    nextSiblings.toNativeArray(), referenceStarts.toNativeArray(), referenceOffsets.toNativeArray(), referenceFiles.toNativeArray(),
+                    fileUrls.toArray(new String[fileUrls.size()]));
+        }
+    }
+}
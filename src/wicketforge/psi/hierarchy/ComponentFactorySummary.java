@@ -0,0 +1,273 @@
+/*
+ * Copyright 2010 The WicketForge-Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wicketforge.psi.hierarchy;
+
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.*;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.util.SmartList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import wicketforge.WicketForgeUtil;
+
+import java.util.*;
+
+/**
+ * Summary of the wicket components a method returns or adds to its own class, cached per method.
+ * <p/>
+ * ex: 'Component createNameField(String id) { return new TextField(id); }' or
+ * 'void addNameField(String id) { add(new TextField(id)); }'. Call sites use the summary instead of analysing
+ * the method again, the wicketId is taken from the call argument if the method passes a parameter as wicketId.
+ */
+final class ComponentFactorySummary {
+    private static final Key<CachedValue<ComponentFactorySummary>> SUMMARY_KEY = Key.create("WICKET_COMPONENT_FACTORY_SUMMARY");
+    private static final ComponentFactorySummary EMPTY = new ComponentFactorySummary(Collections.<Entry>emptyList(), Collections.<Entry>emptyList());
+
+    private final List<Entry> returned;
+    private final List<Entry> added;
+
+    private ComponentFactorySummary(@NotNull List<Entry> returned, @NotNull List<Entry> added) {
+        this.returned = returned;
+        this.added = added;
+    }
+
+    /**
+     * @param method    PsiMethod
+     * @return          summary of the method (empty if method has no body)
+     */
+    @NotNull
+    static ComponentFactorySummary getInstance(@NotNull final PsiMethod method) {
+        if (method.getBody() == null) {
+            return EMPTY; // abstract or compiled
+        }
+        return CachedValuesManager.getManager(method.getProject()).getCachedValue(method, SUMMARY_KEY, new CachedValueProvider<ComponentFactorySummary>() {
+            public Result<ComponentFactorySummary> compute() {
+                return Result.create(build(method), method, PsiModificationTracker.JAVA_STRUCTURE_MODIFICATION_COUNT);
+            }
+        }, false);
+    }
+
+    /**
+     * @return components returned by the method
+     */
+    @NotNull
+    List<Entry> getReturned() {
+        return returned;
+    }
+
+    /**
+     * @return components added by the method to its own class (only with wicketId from a parameter, others are
+     *         already part of the hierarchy of the class)
+     */
+    @NotNull
+    List<Entry> getAdded() {
+        return added;
+    }
+
+    @NotNull
+    private static ComponentFactorySummary build(@NotNull final PsiMethod method) {
+        final PsiType returnType = method.getReturnType();
+        final boolean returnsComponent = returnType instanceof PsiClassType && isWicketComponent(((PsiClassType) returnType).resolve());
+        final List<Entry> returned = new SmartList<Entry>();
+        final List<Entry> added = new SmartList<Entry>();
+        final Map<PsiVariable, List<PsiNewExpression>> variableMap = new HashMap<PsiVariable, List<PsiNewExpression>>();
+
+        PsiCodeBlock body = method.getBody();
+        assert body != null;
+        body.accept(new JavaRecursiveElementVisitor() {
+            @Override
+            public void visitClass(PsiClass aClass) {
+                // components of inner/anonymous classes are not returned/added by this method
+            }
+
+            @Override
+            public void visitDeclarationStatement(PsiDeclarationStatement statement) {
+                super.visitDeclarationStatement(statement);
+                for (PsiElement element : statement.getDeclaredElements()) {
+                    if (element instanceof PsiLocalVariable) {
+                        put((PsiLocalVariable) element, ((PsiLocalVariable) element).getInitializer());
+                    }
+                }
+            }
+
+            @Override
+            public void visitAssignmentExpression(PsiAssignmentExpression expression) {
+                super.visitAssignmentExpression(expression);
+                PsiExpression leftExpression = expression.getLExpression();
+                if (leftExpression instanceof PsiReferenceExpression) {
+                    PsiElement resolvedElement = ((PsiReferenceExpression) leftExpression).resolve();
+                    if (resolvedElement instanceof PsiLocalVariable) {
+                        put((PsiLocalVariable) resolvedElement, expression.getRExpression());
+                    }
+                }
+            }
+
+            @Override
+            public void visitReturnStatement(PsiReturnStatement statement) {
+                super.visitReturnStatement(statement);
+                if (returnsComponent) {
+                    for (PsiNewExpression newExpression : collect(statement.getReturnValue())) {
+                        Entry entry = Entry.create(method, newExpression);
+                        if (entry != null) {
+                            returned.add(entry);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void visitMethodCallExpression(PsiMethodCallExpression expression) {
+                super.visitMethodCallExpression(expression);
+                PsiReferenceExpression methodExpression = expression.getMethodExpression();
+                PsiExpression qualifier = methodExpression.getQualifierExpression();
+                // only add(...) or this.add(...)
+                if (!WicketClassHierarchy.isContainerMutationMethod(methodExpression.getReferenceName())
+                        || (qualifier != null && !(qualifier instanceof PsiThisExpression && ((PsiThisExpression) qualifier).getQualifier() == null))) {
+                    return;
+                }
+                PsiMethod addMethod = expression.resolveMethod();
+                PsiClass addClass = addMethod == null ? null : addMethod.getContainingClass();
+                if (addClass == null || !WicketForgeUtil.isMarkupContainer(addClass)) {
+                    return;
+                }
+                for (PsiExpression argument : expression.getArgumentList().getExpressions()) {
+                    for (PsiNewExpression newExpression : collect(argument)) {
+                        Entry entry = Entry.create(method, newExpression);
+                        if (entry != null && entry.parameterIndex >= 0) {
+                            added.add(entry);
+                        }
+                    }
+                }
+            }
+
+            private void put(@NotNull PsiVariable variable, @Nullable PsiExpression initializer) {
+                List<PsiNewExpression> newExpressions = collect(initializer);
+                if (newExpressions.isEmpty()) {
+                    variableMap.remove(variable);
+                } else {
+                    variableMap.put(variable, newExpressions);
+                }
+            }
+
+            /**
+             * @return new wicket component expressions of expression ex: 'new Label(id)', 'label', 'new Label(id).setVisible(false)'
+             */
+            @NotNull
+            private List<PsiNewExpression> collect(@Nullable PsiExpression expression) {
+                while (expression instanceof PsiParenthesizedExpression) {
+                    expression = ((PsiParenthesizedExpression) expression).getExpression();
+                }
+                if (expression instanceof PsiConditionalExpression) {
+                    List<PsiNewExpression> result = new SmartList<PsiNewExpression>();
+                    result.addAll(collect(((PsiConditionalExpression) expression).getThenExpression()));
+                    result.addAll(collect(((PsiConditionalExpression) expression).getElseExpression()));
+                    return result;
+                }
+                // method chaining ex: new Label(id).setOutputMarkupId(true)
+                while (expression instanceof PsiMethodCallExpression) {
+                    PsiExpression qualifier = ((PsiMethodCallExpression) expression).getMethodExpression().getQualifierExpression();
+                    if (qualifier == null) {
+                        break;
+                    }
+                    expression = qualifier;
+                }
+                if (expression instanceof PsiNewExpression) {
+                    PsiJavaCodeReferenceElement referenceElement = ((PsiNewExpression) expression).getClassOrAnonymousClassReference();
+                    if (referenceElement != null) {
+                        PsiElement resolvedElement = referenceElement.resolve();
+                        if (resolvedElement instanceof PsiClass && isWicketComponent((PsiClass) resolvedElement)) {
+                            return new SmartList<PsiNewExpression>((PsiNewExpression) expression);
+                        }
+                    }
+                } else if (expression instanceof PsiReferenceExpression) {
+                    PsiElement resolvedElement = ((PsiReferenceExpression) expression).resolve();
+                    if (resolvedElement instanceof PsiVariable) {
+                        List<PsiNewExpression> result = variableMap.get(resolvedElement);
+                        if (result != null) {
+                            return result;
+                        }
+                    }
+                }
+                return Collections.emptyList();
+            }
+        });
+
+        return returned.isEmpty() && added.isEmpty() ? EMPTY : new ComponentFactorySummary(returned, added);
+    }
+
+    private static boolean isWicketComponent(@Nullable PsiClass psiClass) {
+        return psiClass != null && WicketForgeUtil.isWicketComponent(psiClass);
+    }
+
+    /**
+     * A component created by the method.
+     */
+    static final class Entry {
+        private final PsiNewExpression newExpression;
+        private final int parameterIndex;
+
+        private Entry(@NotNull PsiNewExpression newExpression, int parameterIndex) {
+            this.newExpression = newExpression;
+            this.parameterIndex = parameterIndex;
+        }
+
+        /**
+         * @return entry or null if the wicketId is neither a parameter of method nor a constant
+         */
+        @Nullable
+        private static Entry create(@NotNull PsiMethod method, @NotNull PsiNewExpression newExpression) {
+            PsiExpression wicketIdExpression = WicketForgeUtil.getWicketIdExpressionFromArguments(newExpression);
+            if (wicketIdExpression == null) {
+                return null;
+            }
+            if (wicketIdExpression instanceof PsiReferenceExpression) {
+                PsiElement resolvedElement = ((PsiReferenceExpression) wicketIdExpression).resolve();
+                if (resolvedElement instanceof PsiParameter && method.equals(((PsiParameter) resolvedElement).getDeclarationScope())) {
+                    return new Entry(newExpression, method.getParameterList().getParameterIndex((PsiParameter) resolvedElement));
+                }
+            }
+            return WicketForgeUtil.getWicketIdFromExpression(wicketIdExpression) != null ? new Entry(newExpression, -1) : null;
+        }
+
+        @NotNull
+        PsiNewExpression getNewExpression() {
+            return newExpression;
+        }
+
+        /**
+         * @return index of the method parameter passed as wicketId or -1 if the wicketId is a constant
+         */
+        int getParameterIndex() {
+            return parameterIndex;
+        }
+
+        /**
+         * @param callExpression    call of the method
+         * @return                  wicketId expression of the created component for the given call
+         */
+        @Nullable
+        PsiExpression getWicketIdExpression(@NotNull PsiMethodCallExpression callExpression) {
+            if (parameterIndex < 0) {
+                return WicketForgeUtil.getWicketIdExpressionFromArguments(newExpression);
+            }
+            PsiExpression[] arguments = callExpression.getArgumentList().getExpressions();
+            return parameterIndex < arguments.length ? arguments[parameterIndex] : null;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010 The WicketForge-Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wicketforge.psi.hierarchy;
+
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.*;
+import com.intellij.psi.search.searches.ReferencesSearch;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+import org.jetbrains.annotations.NotNull;
+import wicketforge.WicketForgeUtil;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Wicket classes using a component class (ex: the users of a border), cached per component class.
+ * <p/>
+ * The reference search is kept until the java structure changes, so a user added inside a method body is found
+ * after the next structure change.
+ */
+public final class ComponentUsers {
+    private static final Key<CachedValue<ComponentUsers>> USERS_KEY = Key.create("WICKET_COMPONENT_USERS");
+
+    private final Collection<PsiClass> creating;
+    private final Collection<PsiClass> referencing;
+
+    private ComponentUsers(@NotNull Collection<PsiClass> creating, @NotNull Collection<PsiClass> referencing) {
+        this.creating = creating;
+        this.referencing = referencing;
+    }
+
+    /**
+     * @param componentClass    component class
+     * @return                  wicket classes creating the component (ex 'new MyBorder(...)')
+     */
+    @NotNull
+    public static Collection<PsiClass> getCreatingClasses(@NotNull PsiClass componentClass) {
+        return getInstance(componentClass).creating;
+    }
+
+    /**
+     * @param componentClass    component class
+     * @return                  wicket classes referencing the component class in any way (ex as type of a field)
+     */
+    @NotNull
+    public static Collection<PsiClass> getReferencingClasses(@NotNull PsiClass componentClass) {
+        return getInstance(componentClass).referencing;
+    }
+
+    @NotNull
+    private static ComponentUsers getInstance(@NotNull final PsiClass componentClass) {
+        return CachedValuesManager.getManager(componentClass.getProject()).getCachedValue(componentClass, USERS_KEY, new CachedValueProvider<ComponentUsers>() {
+            public Result<ComponentUsers> compute() {
+                return Result.create(build(componentClass), PsiModificationTracker.JAVA_STRUCTURE_MODIFICATION_COUNT);
+            }
+        }, false);
+    }
+
+    @NotNull
+    private static ComponentUsers build(@NotNull PsiClass componentClass) {
+        Set<PsiClass> creating = new LinkedHashSet<PsiClass>();
+        Set<PsiClass> referencing = new LinkedHashSet<PsiClass>();
+        for (PsiReference reference : ReferencesSearch.search(componentClass, componentClass.getUseScope()).findAll()) {
+            PsiElement element = reference.getElement();
+            PsiClass userClass = WicketForgeUtil.getParentWicketClass(element);
+            if (userClass == null || userClass == componentClass) {
+                continue;
+            }
+            referencing.add(userClass);
+            PsiElement parent = element.getParent();
+            if (parent instanceof PsiAnonymousClass) {
+                parent = parent.getParent();
+            }
+            if (parent instanceof PsiNewExpression) {
+                creating.add(userClass);
+            }
+        }
+        return new ComponentUsers(Collections.unmodifiableCollection(creating), Collections.unmodifiableCollection(referencing));
+    }
+}
@@ -15,10 +15,25 @@
  */
 package wicketforge.psi.hierarchy;
 
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationAdapter;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.InheritanceUtil;
+import com.intellij.psi.util.PsiModificationTracker;
 import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.psi.xml.XmlFile;
 import com.intellij.util.SmartList;
 import com.intellij.util.containers.Stack;
 import org.jetbrains.annotations.NotNull;
@@ -27,333 +42,649 @@ import wicketforge.Constants;
 import wicketforge.WicketForgeUtil;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Immutable after construction, so one (cached) instance can be shared by concurrent daemon threads.
  */
 public class WicketClassHierarchy {
     private static final Logger LOG = Logger.getInstance("#wicketforge.psi.hierarchy.WicketClassHierarchy");
+    private static final Key<CachedValue<WicketClassHierarchy>> HIERARCHY_KEY = Key.create("WICKET_CLASS_HIERARCHY");
+    private static final Key<PartialHierarchy> PARTIAL_HIERARCHY_KEY = Key.create("WICKET_CLASS_PARTIAL_HIERARCHY");
 
-    private Map<String, ClassItem> wicketIdPathMap;
-    private ClassItem root;
+    /**
+     * Classes whose complete hierarchy is built in background (after a time budgeted build was incomplete).
+     */
+    private static final Set<PsiClass> BACKGROUND_BUILDING = Collections.newSetFromMap(new ConcurrentHashMap<PsiClass, Boolean>());
+
+    /**
+     * Methods that change the component hierarchy, key is the method name.
+     */
+    private static final Map<String, MutationMethod> MUTATION_METHODS = new HashMap<String, MutationMethod>();
+    static {
+        MUTATION_METHODS.put("add", MutationMethod.CONTAINER);
+        MUTATION_METHODS.put("addOrReplace", MutationMethod.CONTAINER);
+        MUTATION_METHODS.put("autoAdd", MutationMethod.CONTAINER);
+        MUTATION_METHODS.put("replace", MutationMethod.CONTAINER);
+        MUTATION_METHODS.put("queue", MutationMethod.CONTAINER); // wicket 7
+        MUTATION_METHODS.put("replaceWith", MutationMethod.REPLACE_WITH);
+        MUTATION_METHODS.put("addToBorder", MutationMethod.BORDER);
+    }
+
+    private static final String WICKET_PACKAGE_PREFIX = "org.apache.wicket.";
+
+    /**
+     * Classes whose hierarchy is currently built by this thread (prevents endless recursion on cyclic inheritance).
+     */
+    private static final ThreadLocal<Set<PsiClass>> BUILDING = new ThreadLocal<Set<PsiClass>>() {
+        @Override
+        protected Set<PsiClass> initialValue() {
+            return new HashSet<PsiClass>();
+        }
+    };
+
+    /**
+     * @param methodName    name of a called method
+     * @return              true if method is a MarkupContainer method adding its arguments as children (ex 'add')
+     */
+    static boolean isContainerMutationMethod(@Nullable String methodName) {
+        return MUTATION_METHODS.get(methodName) == MutationMethod.CONTAINER;
+    }
+
+    private enum MutationMethod {
+        /** MarkupContainer method adding its arguments as children */
+        CONTAINER,
+        /** Component method replacing itself with its argument */
+        REPLACE_WITH,
+        /** Border method adding its arguments to the border itself (add() adds to the body) */
+        BORDER
+    }
+
+    private final Map<String, ClassItem> wicketIdPathMap;
+    private final Map<PsiExpression, String> wicketIdExpressionPathMap; // reverse of wicketIdPathMap: wicketIdExpression -> path
+    private final ClassItem root;
+    private final boolean incomplete;
+    private final Set<PsiElement> dependencies; // other elements this hierarchy is built from: composed superclasses (transitive) and factory methods
+    private final Map<PsiClass, ClassItem> providedFragments; // fragments in the markup of another class: markupProvider -> root of its '~markupId' items
+    private final Map<PsiExpression, PsiClass> markupProviders; // wicketIdExpression of a provided fragment -> markupProvider
+    private final PsiClass psiClass;
+    private PsiClass markupProvider; // markupProvider of the fragment currently added, only set while building
 
+    /**
+     * Returns the hierarchy of the given class. The hierarchy is cached on the PsiClass and gets rebuilt when
+     * the containing file, the file of a composed superclass or factory method or the java structure (resolve of other classes) changes.
+     *
+     * @param psiClass  PsiClass
+     * @return          WicketClassHierarchy
+     */
     @NotNull
-    public static WicketClassHierarchy create(@NotNull PsiClass psiClass) {
-        return new WicketClassHierarchy(psiClass);
+    public static WicketClassHierarchy create(@NotNull final PsiClass psiClass) {
+        return CachedValuesManager.getManager(psiClass.getProject()).getCachedValue(psiClass, HIERARCHY_KEY, new HierarchyProvider(psiClass, null), false);
     }
 
-    private WicketClassHierarchy(@NotNull final PsiClass psiClass) {
+    /**
+     * Like {@link #create(PsiClass)} but stops visiting the class when the time budget is exceeded. In this case the
+     * hierarchy contains all components found so far and is flagged {@link #isIncomplete()}. An incomplete hierarchy
+     * is kept until the next psi change and the complete hierarchy gets built in background, once done it's returned
+     * like by {@link #create(PsiClass)}.
+     *
+     * @param psiClass          PsiClass
+     * @param timeBudgetMillis  max time to build the hierarchy
+     * @return                  WicketClassHierarchy
+     */
+    @NotNull
+    public static WicketClassHierarchy create(@NotNull final PsiClass psiClass, long timeBudgetMillis) {
+        CachedValue<WicketClassHierarchy> cachedValue = psiClass.getUserData(HIERARCHY_KEY);
+        if (cachedValue != null && cachedValue.hasUpToDateValue()) {
+            psiClass.putUserData(PARTIAL_HIERARCHY_KEY, null);
+            return cachedValue.getValue();
+        }
+        long modificationCount = psiClass.getManager().getModificationTracker().getModificationCount();
+        PartialHierarchy partial = psiClass.getUserData(PARTIAL_HIERARCHY_KEY);
+        if (partial != null && partial.modificationCount == modificationCount) {
+            return partial.hierarchy;
+        }
+        WicketClassHierarchy hierarchy = build(psiClass, System.currentTimeMillis() + timeBudgetMillis);
+        if (!hierarchy.incomplete) {
+            // complete -> cache it like create(psiClass) would do, computed now (same read action) so the
+            // dependency stamps are the ones of the build
+            psiClass.putUserData(PARTIAL_HIERARCHY_KEY, null);
+            return CachedValuesManager.getManager(psiClass.getProject()).getCachedValue(psiClass, HIERARCHY_KEY, new HierarchyProvider(psiClass, hierarchy), false);
+        }
+        psiClass.putUserData(PARTIAL_HIERARCHY_KEY, new PartialHierarchy(hierarchy, modificationCount));
+        buildInBackground(psiClass);
+        return hierarchy;
+    }
+
+    /**
+     * Like {@link #create(PsiClass)}, but a hierarchy that is not cached yet is built without caching it on the
+     * PsiClass (used by {@link WicketForgeHierarchyCache}, so closed files don't keep it). Hierarchies of composed
+     * superclasses and borders are still cached, they are shared by all subclasses/users.
+     *
+     * @param psiClass  PsiClass
+     * @return          WicketClassHierarchy
+     */
+    @NotNull
+    static WicketClassHierarchy createUncached(@NotNull PsiClass psiClass) {
+        CachedValue<WicketClassHierarchy> cachedValue = psiClass.getUserData(HIERARCHY_KEY);
+        if (cachedValue != null && cachedValue.hasUpToDateValue()) {
+            return cachedValue.getValue();
+        }
+        return build(psiClass, 0);
+    }
+
+    /**
+     * Builds and caches the complete hierarchy on a pooled thread, cancelled by write actions (the next time budgeted
+     * create starts it again).
+     */
+    private static void buildInBackground(@NotNull final PsiClass psiClass) {
+        if (!BACKGROUND_BUILDING.add(psiClass)) {
+            return;
+        }
+        final Application application = ApplicationManager.getApplication();
+        application.executeOnPooledThread(new Runnable() {
+            public void run() {
+                final ProgressIndicator indicator = new EmptyProgressIndicator();
+                ApplicationAdapter listener = new ApplicationAdapter() {
+                    @Override
+                    public void beforeWriteActionStart(Object action) {
+                        indicator.cancel();
+                    }
+                };
+                application.addApplicationListener(listener);
+                try {
+                    ProgressManager.getInstance().runProcess(new Runnable() {
+                        public void run() {
+                            application.runReadAction(new Runnable() {
+                                public void run() {
+                                    if (!indicator.isCanceled() && psiClass.isValid()) {
+                                        create(psiClass);
+                                    }
+                                }
+                            });
+                        }
+                    }, indicator);
+                } catch (ProcessCanceledException e) {
+                    // write action, psi could have changed
+                } finally {
+                    application.removeApplicationListener(listener);
+                    BACKGROUND_BUILDING.remove(psiClass);
+                }
+            }
+        });
+    }
+
+    @NotNull
+    private static WicketClassHierarchy build(@NotNull PsiClass psiClass, long deadline) {
+        long start = System.currentTimeMillis();
+        WicketClassHierarchy hierarchy;
+        Set<PsiClass> building = BUILDING.get();
+        building.add(psiClass);
+        try {
+            hierarchy = new WicketClassHierarchy(psiClass, deadline);
+        } finally {
+            building.remove(psiClass);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("hierarchy of " + psiClass.getName() + " built in " + (System.currentTimeMillis() - start) + "ms (" + hierarchy.wicketIdPathMap.size() + " paths" + (hierarchy.incomplete ? ", incomplete)" : ")"));
+        }
+        return hierarchy;
+    }
+
+    private static final class HierarchyProvider implements CachedValueProvider<WicketClassHierarchy> {
+        private final PsiClass psiClass;
+        private volatile WicketClassHierarchy precomputed; // hierarchy built in the current read action, only for first compute
+
+        private HierarchyProvider(@NotNull PsiClass psiClass, @Nullable WicketClassHierarchy precomputed) {
+            this.psiClass = psiClass;
+            this.precomputed = precomputed;
+        }
+
+        public Result<WicketClassHierarchy> compute() {
+            WicketClassHierarchy hierarchy = precomputed;
+            precomputed = null;
+            if (hierarchy == null) {
+                hierarchy = build(psiClass, 0);
+            }
+            List<Object> dependencies = new ArrayList<Object>(hierarchy.dependencies.size() + 2);
+            dependencies.add(psiClass);
+            dependencies.addAll(hierarchy.dependencies);
+            dependencies.add(PsiModificationTracker.JAVA_STRUCTURE_MODIFICATION_COUNT);
+            return Result.create(hierarchy, dependencies.toArray());
+        }
+    }
+
+    /**
+     * Incomplete hierarchy of a time budgeted build, valid until the next psi change.
+     */
+    private static final class PartialHierarchy {
+        private final WicketClassHierarchy hierarchy;
+        private final long modificationCount;
+
+        private PartialHierarchy(@NotNull WicketClassHierarchy hierarchy, long modificationCount) {
+            this.hierarchy = hierarchy;
+            this.modificationCount = modificationCount;
+        }
+    }
+
+    /**
+     * @param psiClass  PsiClass
+     * @param deadline  time (System.currentTimeMillis) to stop visiting the class or 0 for no limit
+     */
+    private WicketClassHierarchy(@NotNull final PsiClass psiClass, final long deadline) {
         this.wicketIdPathMap = new HashMap<String, ClassItem>();
+        this.wicketIdExpressionPathMap = new IdentityHashMap<PsiExpression, String>();
         this.root = new ClassItem("");
         this.wicketIdPathMap.put("", root);
+        this.dependencies = new HashSet<PsiElement>();
+        this.providedFragments = new HashMap<PsiClass, ClassItem>();
+        this.markupProviders = new IdentityHashMap<PsiExpression, PsiClass>();
+        this.psiClass = psiClass;
 
-        final Map<PsiElement, List<PsiNewExpression>> workMap = new HashMap<PsiElement, List<PsiNewExpression>>(); // Key: PsiClass or PsiNewExpression reference from a WicketMarkup component
-        final Map<PsiElement, List<PsiNewExpression>> workMapReplaceWith = new HashMap<PsiElement, List<PsiNewExpression>>();
-        psiClass.accept(new JavaRecursiveElementVisitor() {
-            private MarkupReferences markupReferences = new MarkupReferences();
+        final Map<PsiElement, List<PsiExpression>> workMap = new HashMap<PsiElement, List<PsiExpression>>(); // Key: PsiClass or PsiNewExpression reference from a WicketMarkup component, Value: PsiNewExpression or factory PsiMethodCallExpression
+        final Map<PsiElement, List<PsiExpression>> workMapReplaceWith = new HashMap<PsiElement, List<PsiExpression>>();
+        final Map<PsiElement, List<PsiExpression>> workMapBorder = new HashMap<PsiElement, List<PsiExpression>>(); // addToBorder(...)
+        final WicketIdEvaluator wicketIdEvaluator = new WicketIdEvaluator(); // ids are often constants used many times
+        final Map<PsiExpression, List<ClassItem.NewComponentReference>> factoryReferenceMap = new HashMap<PsiExpression, List<ClassItem.NewComponentReference>>(); // Key: call of a component factory method
+        boolean incomplete = false;
+        try {
+            psiClass.accept(new JavaRecursiveElementVisitor() {
+                private MarkupReferences markupReferences = new MarkupReferences();
+                private int visitCount;
 
-            @Override
-            public void visitClass(PsiClass aClass) {
-                if (!aClass.equals(psiClass) && WicketForgeUtil.isWicketComponentWithAssociatedMarkup(aClass)) {
-                    return; // we do not visit inner classes that have own markup
-                }
-                if (!(aClass instanceof PsiAnonymousClass) && WicketForgeUtil.isMarkupContainer(aClass)) {
-                    markupReferences.pushCurrent(new SmartList<PsiElement>(aClass));
-                    super.visitClass(aClass);
-                    markupReferences.popCurrent();
-                } else {
-                    super.visitClass(aClass);
+                @Override
+                public void visitElement(PsiElement element) {
+                    ProgressManager.checkCanceled();
+                    // check time only every 256 elements
+                    if (deadline != 0 && (++visitCount & 0xFF) == 0 && System.currentTimeMillis() > deadline) {
+                        throw TimeBudgetExceededException.INSTANCE;
+                    }
+                    super.visitElement(element);
                 }
-            }
 
-            @Override
-            public void visitNewExpression(PsiNewExpression expression) {
-                PsiClass aClass = expression.getAnonymousClass();
-                if (aClass != null && WicketForgeUtil.isMarkupContainer(aClass)) {
-                    markupReferences.pushCurrent(new SmartList<PsiElement>(expression));
-                    super.visitNewExpression(expression);
-                    markupReferences.popCurrent();
-                } else {
-                    super.visitNewExpression(expression);
+                @Override
+                public void visitClass(PsiClass aClass) {
+                    if (!aClass.equals(psiClass) && WicketForgeUtil.isWicketComponentWithAssociatedMarkup(aClass) && !WicketForgeUtil.isAnonymousBorder(aClass)) {
+                        return; // we do not visit inner classes that have own markup
+                    }
+                    if (!(aClass instanceof PsiAnonymousClass) && WicketForgeUtil.isMarkupContainer(aClass)) {
+                        markupReferences.pushCurrent(new SmartList<PsiElement>(aClass));
+                        super.visitClass(aClass);
+                        markupReferences.popCurrent();
+                    } else {
+                        super.visitClass(aClass);
+                    }
                 }
-            }
 
-            @Override
-            public void visitMethod(PsiMethod method) {
-                // if we have 'populateItem' method () -> we add parameter variable to our var stack, so item.add(...)
-                // could be resolved to ListView/Loop hierarchy.
-                // We dont need to check if its populateItem from a specific class (ex ListView) because first visitCallExpression
-                // checks if add is from a MarkupContainer -> then he tries to resolve variable. If we have a variable in our stack
-                // that is not from wicket populateItem, this does not matter.
-                // (Normally we would check this but AbstractRepeater has only a onPopulate method. Only Loop and ListView have populateItem
-                // these are not inherited. So we dont make this (security) check for now...)
-                if ("populateItem".equals(method.getName())) {
-                    PsiParameter[] parameters = method.getParameterList().getParameters();
-                    if (parameters.length > 0) {
-                        markupReferences.put(parameters[0], markupReferences.getCurrent());
-                        markupReferences.pushCurrent(null); // enhancement 80 -> we have no currentMarkupReference inside populateItem -> should use item.add that can be resolved...
-                        super.visitMethod(method);
+                @Override
+                public void visitNewExpression(PsiNewExpression expression) {
+                    PsiClass aClass = expression.getAnonymousClass();
+                    if (aClass != null && WicketForgeUtil.isMarkupContainer(aClass)) {
+                        markupReferences.pushCurrent(new SmartList<PsiElement>(expression));
+                        super.visitNewExpression(expression);
                         markupReferences.popCurrent();
-                        return; // in this case super already done...
+                    } else {
+                        super.visitNewExpression(expression);
                     }
                 }
-                // todo mm -> check if other subclasses from AbstractRepeater need also to be handled here...
-                super.visitMethod(method);
-            }
-
-            @Override
-            public void visitCallExpression(PsiCallExpression callExpression) {
-                // first super, so assignement adds could be resolved, ex: add(link = new Link(...)) // todo mm -> check if super of other visits should be also called first 
-                super.visitCallExpression(callExpression);
 
-                if (!(callExpression instanceof PsiMethodCallExpression)) {
-                    return;
-                }
-                PsiMethod method = callExpression.resolveMethod();
-                if (method == null) {
-                    return;
-                }
-                PsiClass methodCallClass = method.getContainingClass();
-                if (methodCallClass == null) {
-                    return;
-                }
-                String methodName = method.getName();
-
-                Map<PsiElement, List<PsiNewExpression>> addMap;
-                if (("add".equals(methodName) || "addOrReplace".equals(methodName) || "autoAdd".equals(methodName) || "replace".equals(methodName)) && WicketForgeUtil.isMarkupContainer(methodCallClass)) {
-                    addMap = workMap;
-                } else if ("replaceWith".equals(methodName) && WicketForgeUtil.isWicketComponent(methodCallClass)) {
-                    addMap = workMapReplaceWith;
-                } else {
-                    return;
+                @Override
+                public void visitMethod(PsiMethod method) {
+                    // if we have 'populateItem' method () -> we add parameter variable to our var stack, so item.add(...)
+                    // could be resolved to ListView/Loop hierarchy.
+                    // We dont need to check if its populateItem from a specific class (ex ListView) because first visitCallExpression
+                    // checks if add is from a MarkupContainer -> then he tries to resolve variable. If we have a variable in our stack
+                    // that is not from wicket populateItem, this does not matter.
+                    // (Normally we would check this but AbstractRepeater has only a onPopulate method. Only Loop and ListView have populateItem
+                    // these are not inherited. So we dont make this (security) check for now...)
+                    if ("populateItem".equals(method.getName())) {
+                        PsiParameter[] parameters = method.getParameterList().getParameters();
+                        if (parameters.length > 0) {
+                            markupReferences.put(parameters[0], markupReferences.getCurrent());
+                            markupReferences.pushCurrent(null); // enhancement 80 -> we have no currentMarkupReference inside populateItem -> should use item.add that can be resolved...
+                            super.visitMethod(method);
+                            markupReferences.popCurrent();
+                            return; // in this case super already done...
+                        }
+                    }
+                    // todo mm -> check if other subclasses from AbstractRepeater need also to be handled here...
+                    super.visitMethod(method);
                 }
 
-                // the markupReference class for the given add(...) etc...
-                List<? extends PsiElement> markupReferenceList = null;
-                // if call expression has a reference we got to search for it. ex: link.add(...) or MyPage.this.add(...)
-                PsiReferenceExpression callMethodReference = PsiTreeUtil.getRequiredChildOfType(callExpression, PsiReferenceExpression.class);
-                PsiElement element = PsiTreeUtil.getChildOfAnyType(callMethodReference, PsiReferenceExpression.class, PsiThisExpression.class);
-                if (element instanceof PsiReferenceExpression) {
-                    // ex: link.add(...)
-                    element = ((PsiReferenceExpression) element).resolve();
-                    if (element instanceof PsiVariable) {
-                        markupReferenceList = new SmartList<PsiElement>(markupReferences.get((PsiVariable) element));
-                        if (addMap != workMapReplaceWith) {
-                            for (Iterator<? extends PsiElement> iterator = markupReferenceList.iterator(); iterator.hasNext();) {
-                                PsiElement markupReference = iterator.next();
-                                if (markupReference instanceof PsiNewExpression) { // check instanceOf,  markupReference can also be PsiClass (issue 67)
-                                    // this one will be our markupReference
-                                    PsiClass classToCreate = resolveClassFromNewExpression((PsiNewExpression) markupReference);
-                                    // just to be sure our markupReference is not one with own markup (ex: someone could add components to an instance of an inner panel, bad practice but possible)
-                                    if (classToCreate != null && !classToCreate.equals(psiClass) && WicketForgeUtil.isWicketComponentWithAssociatedMarkup(classToCreate)) {
-                                        iterator.remove();
+                @Override
+                public void visitCallExpression(PsiCallExpression callExpression) {
+                    // first super, so assignement adds could be resolved, ex: add(link = new Link(...)) // todo mm -> check if super of other visits should be also called first 
+                    super.visitCallExpression(callExpression);
+
+                    if (!(callExpression instanceof PsiMethodCallExpression)) {
+                        return;
+                    }
+                    // check name first, so we only resolve candidates (resolve is expensive)
+                    MutationMethod mutationMethod = MUTATION_METHODS.get(((PsiMethodCallExpression) callExpression).getMethodExpression().getReferenceName());
+                    if (mutationMethod == null) {
+                        addFactoryAddedComponents((PsiMethodCallExpression) callExpression);
+                        return;
+                    }
+                    PsiMethod method = callExpression.resolveMethod();
+                    if (method == null) {
+                        return;
+                    }
+                    PsiClass methodCallClass = method.getContainingClass();
+                    if (methodCallClass == null) {
+                        return;
+                    }
+
+                    Map<PsiElement, List<PsiExpression>> addMap;
+                    if (mutationMethod == MutationMethod.CONTAINER && WicketForgeUtil.isMarkupContainer(methodCallClass)) {
+                        addMap = workMap;
+                    } else if (mutationMethod == MutationMethod.REPLACE_WITH && WicketForgeUtil.isWicketComponent(methodCallClass)) {
+                        addMap = workMapReplaceWith;
+                    } else if (mutationMethod == MutationMethod.BORDER && WicketForgeUtil.isWicketBorder(methodCallClass)) {
+                        addMap = workMapBorder;
+                    } else {
+                        return;
+                    }
+
+                    // the markupReference class for the given add(...) etc...
+                    List<? extends PsiElement> markupReferenceList = null;
+                    // if call expression has a reference we got to search for it. ex: link.add(...) or MyPage.this.add(...)
+                    PsiReferenceExpression callMethodReference = PsiTreeUtil.getRequiredChildOfType(callExpression, PsiReferenceExpression.class);
+                    PsiElement element = PsiTreeUtil.getChildOfAnyType(callMethodReference, PsiReferenceExpression.class, PsiThisExpression.class);
+                    if (element instanceof PsiReferenceExpression) {
+                        // ex: link.add(...)
+                        element = ((PsiReferenceExpression) element).resolve();
+                        if (element instanceof PsiVariable) {
+                            markupReferenceList = new SmartList<PsiElement>(markupReferences.get((PsiVariable) element));
+                            if (addMap != workMapReplaceWith) {
+                                for (Iterator<? extends PsiElement> iterator = markupReferenceList.iterator(); iterator.hasNext();) {
+                                    PsiElement markupReference = iterator.next();
+                                    if (markupReference instanceof PsiNewExpression) { // check instanceOf,  markupReference can also be PsiClass (issue 67)
+                                        // this one will be our markupReference
+                                        PsiClass classToCreate = resolveClassFromNewExpression((PsiNewExpression) markupReference);
+                                        // just to be sure our markupReference is not one with own markup (ex: someone could add components to an instance of an inner panel, bad practice but possible)
+                                        if (classToCreate != null && !classToCreate.equals(psiClass) && WicketForgeUtil.isWicketComponentWithAssociatedMarkup(classToCreate)
+                                                && !WicketForgeUtil.isWicketBorder(classToCreate)) { // border.add(...) adds to its body
+                                            iterator.remove();
+                                        }
                                     }
                                 }
                             }
                         }
-                    }
-                } else if (element instanceof PsiThisExpression) {
-                    // ex: MyPage.this.add(...)
-                    element = ((PsiThisExpression) element).getQualifier();
-                    if (element == null) {
-                        // this.add(...) -> current
-                        markupReferenceList = markupReferences.getCurrent();
-                    } else {
-                        // MyPage.this.add(...) -> resolve PsiClass references by this...
-                        element = ((PsiJavaCodeReferenceElement) element).resolve();
-                        if (element instanceof PsiClass) {
-                            markupReferenceList = new SmartList<PsiElement>(element);
+                    } else if (element instanceof PsiThisExpression) {
+                        // ex: MyPage.this.add(...)
+                        element = ((PsiThisExpression) element).getQualifier();
+                        if (element == null) {
+                            // this.add(...) -> current
+                            markupReferenceList = markupReferences.getCurrent();
+                        } else {
+                            // MyPage.this.add(...) -> resolve PsiClass references by this...
+                            element = ((PsiJavaCodeReferenceElement) element).resolve();
+                            if (element instanceof PsiClass) {
+                                markupReferenceList = new SmartList<PsiElement>(element);
+                            }
                         }
+                    } else {
+                        // no reference -> so add to our current
+                        markupReferenceList = markupReferences.getCurrent();
                     }
-                } else {
-                    // no reference -> so add to our current
-                    markupReferenceList = markupReferences.getCurrent();
-                }
 
-                // no markupReference to add -> return
-                if (markupReferenceList == null || markupReferenceList.isEmpty()) {
-                    return;
-                }
+                    // no markupReference to add -> return
+                    if (markupReferenceList == null || markupReferenceList.isEmpty()) {
+                        return;
+                    }
 
-                // go thru all call argument expressions
-                PsiExpressionList callExpressionList = callExpression.getArgumentList();
-                if (callExpressionList != null) {
-                    for (PsiElement markupReference : markupReferenceList) {
-                        List<PsiNewExpression> addList = addMap.get(markupReference);
-                        for (PsiExpression callParameterExpression : callExpressionList.getExpressions()) {
-                            // resolve expressions for new wicket component
-                            List<PsiNewExpression> newExpressions = resolveExpressionNewWicketComponent(callParameterExpression);
-                            if (newExpressions.size() > 0) {
-                                // and add to its
-                                if (addList == null) {
-                                    addList = newExpressions;
-                                    addMap.put(markupReference, addList);
-                                } else {
-                                    addList.addAll(newExpressions);
+                    // go thru all call argument expressions
+                    PsiExpressionList callExpressionList = callExpression.getArgumentList();
+                    if (callExpressionList != null) {
+                        for (PsiElement markupReference : markupReferenceList) {
+                            List<PsiExpression> addList = addMap.get(markupReference);
+                            for (PsiExpression callParameterExpression : callExpressionList.getExpressions()) {
+                                // resolve expressions for new wicket component
+                                List<PsiExpression> newExpressions = resolveExpressionNewWicketComponent(callParameterExpression);
+                                if (newExpressions.size() > 0) {
+                                    // and add to its
+                                    if (addList == null) {
+                                        addList = newExpressions;
+                                        addMap.put(markupReference, addList);
+                                    } else {
+                                        addList.addAll(newExpressions);
+                                    }
                                 }
                             }
                         }
                     }
                 }
-            }
 
-            @Override
-            public void visitField(PsiField field) {
-                super.visitField(field);
-                // if field has an initializer...
-                PsiExpression initializer = field.getInitializer();
-                if (initializer != null) {
-                    // put this into our var container
-                    markupReferences.put(field, resolveExpressionNewWicketComponent(initializer));
+                @Override
+                public void visitField(PsiField field) {
+                    super.visitField(field);
+                    // if field has an initializer...
+                    PsiExpression initializer = field.getInitializer();
+                    if (initializer != null) {
+                        // put this into our var container
+                        markupReferences.put(field, resolveExpressionNewWicketComponent(initializer));
+                    }
                 }
-            }
 
-            @Override
-            public void visitDeclarationStatement(PsiDeclarationStatement statement) {
-                super.visitDeclarationStatement(statement);
-                for (PsiElement element : statement.getDeclaredElements()) {
-                    // if is variable and has an initializer...
-                    if (element instanceof PsiVariable) {
-                        PsiExpression initializer = ((PsiVariable) element).getInitializer();
-                        if (initializer != null) {
-                            // put this into our var container
-                            markupReferences.put((PsiVariable) element, resolveExpressionNewWicketComponent(initializer));
+                @Override
+                public void visitDeclarationStatement(PsiDeclarationStatement statement) {
+                    super.visitDeclarationStatement(statement);
+                    for (PsiElement element : statement.getDeclaredElements()) {
+                        // if is variable and has an initializer...
+                        if (element instanceof PsiVariable) {
+                            PsiExpression initializer = ((PsiVariable) element).getInitializer();
+                            if (initializer != null) {
+                                // put this into our var container
+                                markupReferences.put((PsiVariable) element, resolveExpressionNewWicketComponent(initializer));
+                            }
                         }
                     }
                 }
-            }
 
-            @Override
-            public void visitAssignmentExpression(PsiAssignmentExpression expression) {
-                super.visitAssignmentExpression(expression);
-                PsiExpression leftExpression = expression.getLExpression();
-                if (leftExpression instanceof PsiReference) {
-                    PsiElement resolvedElement = ((PsiReference) leftExpression).resolve();
-                    if (resolvedElement instanceof PsiVariable) {
-                        PsiExpression initializer  = expression.getRExpression();
-                        if (initializer != null) {
-                            // put assigned expression to our var container
-                            markupReferences.put((PsiVariable) resolvedElement, resolveExpressionNewWicketComponent(initializer));
+                @Override
+                public void visitAssignmentExpression(PsiAssignmentExpression expression) {
+                    super.visitAssignmentExpression(expression);
+                    PsiExpression leftExpression = expression.getLExpression();
+                    if (leftExpression instanceof PsiReference) {
+                        PsiElement resolvedElement = ((PsiReference) leftExpression).resolve();
+                        if (resolvedElement instanceof PsiVariable) {
+                            PsiExpression initializer  = expression.getRExpression();
+                            if (initializer != null) {
+                                // put assigned expression to our var container
+                                markupReferences.put((PsiVariable) resolvedElement, resolveExpressionNewWicketComponent(initializer));
+                            }
                         }
                     }
                 }
-            }
 
-            /**
-             *
-             * @param expression
-             * @return              referenced PsiNewExpression's (if they are Wicket Components) 
-             */
-            @NotNull
-            private List<PsiNewExpression> resolveExpressionNewWicketComponent(@Nullable PsiExpression expression) {
-                List<PsiNewExpression> list = new SmartList<PsiNewExpression>();
-                if (expression instanceof PsiConditionalExpression) {
-                    List<PsiNewExpression> newExpression = resolveExpressionNewWicketComponentInternal(((PsiConditionalExpression) expression).getThenExpression());
-                    if (newExpression != null) {
-                        list.addAll(newExpression);
-                    }
-                    newExpression = resolveExpressionNewWicketComponentInternal(((PsiConditionalExpression) expression).getElseExpression());
-                    if (newExpression != null) {
-                        list.addAll(newExpression);
-                    }
-                } else {
-                    List<PsiNewExpression> newExpression = resolveExpressionNewWicketComponentInternal(expression);
-                    if (newExpression != null) {
-                        list.addAll(newExpression);
+                /**
+                 *
+                 * @param expression
+                 * @return              referenced PsiNewExpression's (if they are Wicket Components) 
+                 */
+                @NotNull
+                private List<PsiExpression> resolveExpressionNewWicketComponent(@Nullable PsiExpression expression) {
+                    List<PsiExpression> list = new SmartList<PsiExpression>();
+                    if (expression instanceof PsiConditionalExpression) {
+                        List<PsiExpression> newExpression = resolveExpressionNewWicketComponentInternal(((PsiConditionalExpression) expression).getThenExpression());
+                        if (newExpression != null) {
+                            list.addAll(newExpression);
+                        }
+                        newExpression = resolveExpressionNewWicketComponentInternal(((PsiConditionalExpression) expression).getElseExpression());
+                        if (newExpression != null) {
+                            list.addAll(newExpression);
+                        }
+                    } else {
+                        List<PsiExpression> newExpression = resolveExpressionNewWicketComponentInternal(expression);
+                        if (newExpression != null) {
+                            list.addAll(newExpression);
+                        }
                     }
+                    return list;
                 }
-                return list;
-            }
 
-            /**
-             *
-             */
-            @Nullable
-            private List<PsiNewExpression> resolveExpressionNewWicketComponentInternal(@Nullable PsiExpression expression) {
-                // get new Expression/Variable from method chaining ex: new Label(...).setOutputMarkupId(true).setEnabled(true);
-                if (expression instanceof PsiMethodCallExpression) {
-                    PsiMethodCallExpression methodCallExpression = null;
-                    while (expression instanceof PsiMethodCallExpression) {
-                        methodCallExpression = (PsiMethodCallExpression) expression;
-                        PsiElement element = expression.getFirstChild();
-                        if (element instanceof PsiReferenceExpression) {
-                            element = element.getFirstChild();
-                            if (element instanceof PsiExpression) {
-                                expression = (PsiExpression) element;
+                /**
+                 *
+                 */
+                @Nullable
+                private List<PsiExpression> resolveExpressionNewWicketComponentInternal(@Nullable PsiExpression expression) {
+                    // get new Expression/Variable from method chaining ex: new Label(...).setOutputMarkupId(true).setEnabled(true);
+                    if (expression instanceof PsiMethodCallExpression) {
+                        PsiMethodCallExpression methodCallExpression = null;
+                        while (expression instanceof PsiMethodCallExpression) {
+                            methodCallExpression = (PsiMethodCallExpression) expression;
+                            PsiElement element = expression.getFirstChild();
+                            if (element instanceof PsiReferenceExpression) {
+                                element = element.getFirstChild();
+                                if (element instanceof PsiExpression) {
+                                    expression = (PsiExpression) element;
+                                } else {
+                                    break;
+                                }
                             } else {
                                 break;
                             }
-                        } else {
-                            break;
                         }
+                        // check if chaining-method returns wicketcomponent (issue 69)
+                        if (expression instanceof PsiReferenceExpression) {
+                            PsiClass returnClass = getMethodReturnClass(methodCallExpression.resolveMethod());
+                            if (returnClass == null || !WicketForgeUtil.isWicketComponent(returnClass)) {
+                                return null;
+                            }
+                        }
+                    }
+                    // get Variable from assignement ex: add(link = new Link(...))
+                    if (expression instanceof PsiAssignmentExpression) {
+                        expression = ((PsiAssignmentExpression) expression).getLExpression();
                     }
-                    // check if chaining-method returns wicketcomponent (issue 69)
-                    if (expression instanceof PsiReferenceExpression) {
-                        PsiClass returnClass = getMethodReturnClass(methodCallExpression.resolveMethod());
-                        if (returnClass == null || !WicketForgeUtil.isWicketComponent(returnClass)) {
-                            return null;
+
+                    // resolve
+                    if (expression instanceof PsiReference) {
+                        // if it's a reference -> find possibly newExpression from our var stack
+                        PsiElement resolvedElement = ((PsiReference) expression).resolve();
+                        if (resolvedElement instanceof PsiVariable) {
+                            List<PsiExpression> result = new SmartList<PsiExpression>();
+                            for (PsiElement element : markupReferences.get((PsiVariable) resolvedElement)) {
+                                if (element instanceof PsiNewExpression || element instanceof PsiMethodCallExpression) {
+                                    result.add((PsiExpression) element);
+                                }
+                            }
+                            return result;
+                        }
+                    } else if (expression instanceof PsiNewExpression) {
+                        // check if its a new wicket component
+                        PsiClass classToCreate = resolveClassFromNewExpression((PsiNewExpression) expression);
+                        if (classToCreate != null && WicketForgeUtil.isWicketComponent(classToCreate)) {
+                            return new SmartList<PsiExpression>(expression);
+                        }
+                    } else if (expression instanceof PsiMethodCallExpression) {
+                        // component factory method ex: add(createNameField("name"))
+                        PsiMethod method = ((PsiMethodCallExpression) expression).resolveMethod();
+                        if (method != null && putFactoryReferences((PsiMethodCallExpression) expression, ComponentFactorySummary.getInstance(method).getReturned())) {
+                            return new SmartList<PsiExpression>(expression);
                         }
                     }
+                    return null;
                 }
-                // get Variable from assignement ex: add(link = new Link(...))
-                if (expression instanceof PsiAssignmentExpression) {
-                    expression = ((PsiAssignmentExpression) expression).getLExpression();
+
+                /**
+                 * Components added by a method of our class with wicketId from a parameter ex: addNameField("name")
+                 */
+                private void addFactoryAddedComponents(@NotNull PsiMethodCallExpression callExpression) {
+                    PsiReferenceExpression methodExpression = callExpression.getMethodExpression();
+                    PsiExpression qualifier = methodExpression.getQualifierExpression();
+                    String methodName = methodExpression.getReferenceName();
+                    if (methodName == null || (qualifier != null && !(qualifier instanceof PsiThisExpression && ((PsiThisExpression) qualifier).getQualifier() == null))) {
+                        return;
+                    }
+                    // check name first, so we only resolve candidates (resolve is expensive)
+                    boolean candidate = false;
+                    for (PsiMethod method : psiClass.findMethodsByName(methodName, true)) {
+                        if (method.getBody() != null) {
+                            candidate = true;
+                            break;
+                        }
+                    }
+                    if (!candidate) {
+                        return;
+                    }
+                    PsiMethod method = callExpression.resolveMethod();
+                    PsiClass methodClass = method == null ? null : method.getContainingClass();
+                    if (methodClass == null || !(psiClass.equals(methodClass) || psiClass.isInheritor(methodClass, true))) {
+                        return;
+                    }
+                    if (putFactoryReferences(callExpression, ComponentFactorySummary.getInstance(method).getAdded())) {
+                        List<PsiExpression> addList = workMap.get(psiClass);
+                        if (addList == null) {
+                            addList = new SmartList<PsiExpression>();
+                            workMap.put(psiClass, addList);
+                        }
+                        addList.add(callExpression);
+                    }
                 }
 
-                // resolve
-                if (expression instanceof PsiReference) {
-                    // if it's a reference -> find possibly newExpression from our var stack
-                    PsiElement resolvedElement = ((PsiReference) expression).resolve();
-                    if (resolvedElement instanceof PsiVariable) {
-                        List<PsiNewExpression> result = new SmartList<PsiNewExpression>();
-                        for (PsiElement element : markupReferences.get((PsiVariable) resolvedElement)) {
-                            if (element instanceof PsiNewExpression) {
-                                result.add((PsiNewExpression) element);
-                            }
+                /**
+                 * @return true if at least one component of the factory method could be referenced by the call
+                 */
+                private boolean putFactoryReferences(@NotNull PsiMethodCallExpression callExpression, @NotNull List<ComponentFactorySummary.Entry> entries) {
+                    if (entries.isEmpty()) {
+                        return false;
+                    }
+                    List<ClassItem.NewComponentReference> references = new SmartList<ClassItem.NewComponentReference>();
+                    for (ComponentFactorySummary.Entry entry : entries) {
+                        ClassItem.NewComponentReference reference = ClassItem.NewComponentReference.create(callExpression, entry, wicketIdEvaluator);
+                        if (reference != null) {
+                            references.add(reference);
                         }
-                        return result;
                     }
-                } else if (expression instanceof PsiNewExpression) {
-                    // check if its a new wicket component
-                    PsiClass classToCreate = resolveClassFromNewExpression((PsiNewExpression) expression);
-                    if (classToCreate != null && WicketForgeUtil.isWicketComponent(classToCreate)) {
-                        return new SmartList<PsiNewExpression>((PsiNewExpression) expression);
+                    if (references.isEmpty()) {
+                        return false;
                     }
+                    factoryReferenceMap.put(callExpression, references);
+                    // factory method could be in another file
+                    dependencies.add(entries.get(0).getNewExpression());
+                    return true;
                 }
-                return null;
-            }
 
-            /**
-             * @param newExpression
-             * @return              PsiAnonymousClass or referenced PsiClass or null
-             *
-             * This is *not* equal to PsiNewExpression.getClassOrAnonymousClassReference()
-             */
-            @Nullable
-            private PsiClass resolveClassFromNewExpression(@NotNull PsiNewExpression newExpression) {
-                // first check if referenced var is a anonymous class, then we have our result
-                PsiClass result = newExpression.getAnonymousClass();
-                if (result == null) {
-                    // if not anonymous -> resolve concrete class as result
-                    PsiJavaCodeReferenceElement referenceElement = newExpression.getClassReference();
-                    if (referenceElement != null) {
-                        PsiElement resolvedElement = referenceElement.resolve();
-                        if (resolvedElement != null && resolvedElement instanceof PsiClass) {
-                            result = (PsiClass) resolvedElement;
+                /**
+                 * @param newExpression
+                 * @return              PsiAnonymousClass or referenced PsiClass or null
+                 *
+                 * This is *not* equal to PsiNewExpression.getClassOrAnonymousClassReference()
+                 */
+                @Nullable
+                private PsiClass resolveClassFromNewExpression(@NotNull PsiNewExpression newExpression) {
+                    // first check if referenced var is a anonymous class, then we have our result
+                    PsiClass result = newExpression.getAnonymousClass();
+                    if (result == null) {
+                        // if not anonymous -> resolve concrete class as result
+                        PsiJavaCodeReferenceElement referenceElement = newExpression.getClassReference();
+                        if (referenceElement != null) {
+                            PsiElement resolvedElement = referenceElement.resolve();
+                            if (resolvedElement != null && resolvedElement instanceof PsiClass) {
+                                result = (PsiClass) resolvedElement;
+                            }
                         }
                     }
+                    return result;
                 }
-                return result;
-            }
-        });
+            });
+        } catch (TimeBudgetExceededException e) {
+            // continue with components found so far
+            incomplete = true;
+        }
+        this.incomplete = incomplete;
+
+        List<List<PsiExpression>> addLists = new ArrayList<List<PsiExpression>>(workMap.values());
+        addLists.addAll(workMapBorder.values());
 
         // merge all workMapReplaceWith into WorkMap
-        for (Map.Entry<PsiElement, List<PsiNewExpression>> entry : workMapReplaceWith.entrySet()) {
+        for (Map.Entry<PsiElement, List<PsiExpression>> entry : workMapReplaceWith.entrySet()) {
             // we need newExpression
             PsiElement key = entry.getKey();
-            if (key instanceof PsiNewExpression) {
-                PsiNewExpression newExpression = (PsiNewExpression) key;
-                for (List<PsiNewExpression> list : workMap.values()) {
-                    if (list.contains(newExpression)) {
+            if (key instanceof PsiExpression) {
+                for (List<PsiExpression> list : addLists) {
+                    if (list.contains(key)) {
                         list.addAll(entry.getValue());
                     }
                 }
@@ -361,71 +692,296 @@ public class WicketClassHierarchy {
         }
 
         // put all new wicket component expressions to a list as NewComponentReference
-        Map<PsiNewExpression, ClassItem.NewComponentReference> newComponentReferenceMap = new HashMap<PsiNewExpression, ClassItem.NewComponentReference>();
-        for (List<PsiNewExpression> list : workMap.values()) {
-            for (PsiNewExpression newExpression : list) {
-                if (!newComponentReferenceMap.containsKey(newExpression)) {
-                    ClassItem.NewComponentReference newComponentReference = ClassItem.NewComponentReference.create(newExpression);
+        Map<PsiExpression, List<ClassItem.NewComponentReference>> newComponentReferenceMap = new HashMap<PsiExpression, List<ClassItem.NewComponentReference>>(factoryReferenceMap);
+        for (List<PsiExpression> list : addLists) {
+            for (PsiExpression expression : list) {
+                if (expression instanceof PsiNewExpression && !newComponentReferenceMap.containsKey(expression)) {
+                    ClassItem.NewComponentReference newComponentReference = ClassItem.NewComponentReference.create((PsiNewExpression) expression, wicketIdEvaluator);
                     if (newComponentReference != null) {
-                        newComponentReferenceMap.put(newExpression, newComponentReference);
+                        newComponentReferenceMap.put(expression, new SmartList<ClassItem.NewComponentReference>(newComponentReference));
                     }
                 }
             }
         }
 
-        List<PsiNewExpression> addedComponents = workMap.get(psiClass);
-        if (addedComponents != null) {
-            addRecursive(workMap, newComponentReferenceMap, new StringBuilder(), root, psiClass, addedComponents, 0);
+        List<PsiExpression> rootComponents = workMap.get(psiClass);
+        if (WicketForgeUtil.isWicketBorder(psiClass)) {
+            // Border: add(...) adds to the body, so to the markup of the user of the border ex '#border#name' (composed
+            // there from our '#wicket:body'), addToBorder(...) adds to our markup
+            if (rootComponents != null) {
+                StringBuilder bodyPath = new StringBuilder().append(Constants.HIERARCHYSEPARATOR).append(Constants.WICKET_BODY);
+                ClassItem body = findOrCreateChild(bodyPath, root, Constants.WICKET_BODY);
+                addRecursive(workMap, newComponentReferenceMap, bodyPath, body, null, rootComponents, 0);
+            }
+            rootComponents = workMapBorder.get(psiClass);
+        }
+        // always (even without own components) -> superclass components
+        addRecursive(workMap, newComponentReferenceMap, new StringBuilder(), root, psiClass.getSuperClass(), rootComponents, 0);
+
+        // fragments of our markup created by other classes ex 'new Fragment("id", "markupId", myPanel)'
+        if (hasFragmentsOfOtherClasses()) {
+            for (PsiClass userClass : ComponentUsers.getReferencingClasses(psiClass)) {
+                if (BUILDING.get().contains(userClass)) {
+                    continue;
+                }
+                WicketClassHierarchy userHierarchy = create(userClass);
+                dependencies.add(userClass); // a user could start providing a fragment
+                ClassItem fragments = userHierarchy.providedFragments.get(psiClass);
+                if (fragments != null) {
+                    dependencies.addAll(userHierarchy.dependencies);
+                    composeRecursive(new StringBuilder(), root, fragments);
+                }
+            }
         }
     }
 
-    private void addRecursive(@NotNull Map<PsiElement, List<PsiNewExpression>> workMap,
-                              @NotNull Map<PsiNewExpression, ClassItem.NewComponentReference> newComponentReferenceMap,
+    /**
+     * @return true if our markup has a &lt;wicket:fragment&gt; we don't create (markup files get dependencies)
+     */
+    private boolean hasFragmentsOfOtherClasses() {
+        if (!WicketForgeUtil.isWicketComponentWithAssociatedMarkup(psiClass)) {
+            return false;
+        }
+        boolean result = false;
+        for (PsiFile markupFile : WicketForgeUtil.getMarkupFiles(psiClass)) {
+            if (markupFile instanceof XmlFile) {
+                dependencies.add(markupFile);
+                for (String path : WicketMarkupHierarchy.create((XmlFile) markupFile).getWicketIdPathMap().keySet()) {
+                    // root fragment ex '#~markupId'
+                    if (path.length() > 1 && path.charAt(1) == Constants.FRAGMENTPREFIX && path.indexOf(Constants.HIERARCHYSEPARATOR, 1) < 0
+                            && !wicketIdPathMap.containsKey(path)) {
+                        result = true;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param superClass        superclass of parent, its components get also added to parent
+     * @param addedComponents   PsiNewExpression or factory PsiMethodCallExpression added to parent
+     */
+    private void addRecursive(@NotNull Map<PsiElement, List<PsiExpression>> workMap,
+                              @NotNull Map<PsiExpression, List<ClassItem.NewComponentReference>> newComponentReferenceMap,
                               @NotNull StringBuilder path,
                               @NotNull ClassItem parent,
-                              @NotNull PsiElement parentElement,
-                              @Nullable List<PsiNewExpression> addedComponents,
+                              @Nullable PsiClass superClass,
+                              @Nullable List<PsiExpression> addedComponents,
                               int depth) {
+        ProgressManager.checkCanceled();
         if (depth++ > 50) {
             LOG.error("Deep addRecursive", path.toString());
             return;
         }
         
         if (addedComponents != null) {
-            for (PsiNewExpression newExpression : addedComponents) {
-                ClassItem.NewComponentReference newComponentReference = newComponentReferenceMap.get(newExpression);
-                if (newComponentReference != null) {
-
-                    int length = path.length();
-                    try {
-                        path.append(Constants.HIERARCHYSEPARATOR).append(newComponentReference.getWicketId());
+            for (PsiExpression expression : addedComponents) {
+                List<ClassItem.NewComponentReference> newComponentReferences = newComponentReferenceMap.get(expression);
+                if (newComponentReferences != null) {
+                    for (ClassItem.NewComponentReference newComponentReference : newComponentReferences) {
+                        int length = path.length();
+                        try {
+                            path.append(Constants.HIERARCHYSEPARATOR).append(newComponentReference.getWicketId());
 
-                        ClassItem child = findOrCreateChild(path, parent, newComponentReference.getWicketId());
+                            ClassItem child = findOrCreateChild(path, parent, newComponentReference.getWicketId());
 
-                        child.getReferences().add(newComponentReference);
+                            child.addReference(newComponentReference);
+                            putPath(newComponentReference.getWicketIdExpression(), path);
 
-                        addRecursive(workMap, newComponentReferenceMap, path, child, newExpression, workMap.get(newExpression), depth);
-                    } finally {
-                        path.setLength(length);
+                            List<PsiExpression> childComponents = workMap.get(expression);
+                            if (expression != newComponentReference.getNewExpression()) {
+                                // factory call -> also components added to the new expression inside the factory method
+                                List<PsiExpression> factoryChildComponents = workMap.get(newComponentReference.getNewExpression());
+                                if (factoryChildComponents != null) {
+                                    if (childComponents == null) {
+                                        childComponents = factoryChildComponents;
+                                    } else {
+                                        childComponents = new ArrayList<PsiExpression>(childComponents);
+                                        childComponents.addAll(factoryChildComponents);
+                                    }
+                                }
+                            }
+                            String fragmentMarkupId = newComponentReference.getFragmentMarkupId();
+                            if (fragmentMarkupId == null) {
+                                addRecursive(workMap, newComponentReferenceMap, path, child, newComponentReference.getBaseClassToCreate(), childComponents, depth);
+                            } else {
+                                // Fragment -> components belong to the <wicket:fragment> of the markup of the markupProvider
+                                // ex '#~markupId#name', our markup for 'this' (or none), else the one of the provider
+                                String fragmentWicketId = Constants.FRAGMENTPREFIX + fragmentMarkupId;
+                                StringBuilder fragmentPath = new StringBuilder().append(Constants.HIERARCHYSEPARATOR).append(fragmentWicketId);
+                                PsiClass provider = newComponentReference.getFragmentMarkupProvider();
+                                if (provider != null && InheritanceUtil.isInheritorOrSelf(psiClass, provider, true)) {
+                                    provider = null; // our markup
+                                }
+                                ClassItem fragmentParent = root;
+                                if (provider != null) {
+                                    fragmentParent = providedFragments.get(provider);
+                                    if (fragmentParent == null) {
+                                        fragmentParent = new ClassItem("");
+                                        providedFragments.put(provider, fragmentParent);
+                                    }
+                                }
+                                PsiClass previousProvider = markupProvider;
+                                markupProvider = provider;
+                                try {
+                                    ClassItem fragment = findOrCreateChild(fragmentPath, fragmentParent, fragmentWicketId);
+                                    fragment.addReference(newComponentReference);
+                                    addRecursive(workMap, newComponentReferenceMap, fragmentPath, fragment, newComponentReference.getBaseClassToCreate(), childComponents, depth);
+                                } finally {
+                                    markupProvider = previousProvider;
+                                }
+                            }
+                        } finally {
+                            path.setLength(length);
+                        }
                     }
                 }
             }
         }
         // add also components of superclass (if any... ex: MyPage.java -> inner class MyMarkupContainer -> label myMarkupContainer )
-        PsiClass superClass = null;
-        if (parentElement instanceof PsiClass) {
-            superClass = ((PsiClass) parentElement).getSuperClass();
-        } else if (parentElement instanceof PsiNewExpression) {
-            PsiNewExpression newExpression = (PsiNewExpression) parentElement;
-            ClassItem.NewComponentReference newComponentReference = newComponentReferenceMap.get(newExpression);
-            if (newComponentReference != null) {
-                superClass = newComponentReference.getBaseClassToCreate();
-            }
-        }
         if (superClass != null) {
-            List<PsiNewExpression> superAddedComponents = workMap.get(superClass);
+            List<PsiExpression> superAddedComponents = workMap.get(superClass);
             if (superAddedComponents != null) {
-                addRecursive(workMap, newComponentReferenceMap, path, parent, superClass, superAddedComponents, depth);
+                addRecursive(workMap, newComponentReferenceMap, path, parent, superClass.getSuperClass(), superAddedComponents, depth);
+            } else {
+                // superclass not visited by us -> compose its (cached) hierarchy, so every superclass gets visited once
+                // for all subclasses. Components of a superclass with own markup belong to this markup only on
+                // our root (ex: MyPage extends BasePage), not on a new component (ex: new MyPanel(...)).
+                if (parent == root || !WicketForgeUtil.isWicketComponentWithAssociatedMarkup(superClass)) {
+                    composeSuperClass(path, parent, superClass);
+                } else if (WicketForgeUtil.isWicketBorder(superClass)) {
+                    // new MyBorder(...) -> components MyBorder adds to its body
+                    composeBorderBody(path, parent, superClass);
+                }
+            }
+        }
+    }
+
+    private void composeSuperClass(@NotNull StringBuilder path, @NotNull ClassItem parent, @NotNull PsiClass superClass) {
+        PsiClass composableClass = getComposableClass(superClass);
+        if (composableClass == null) {
+            return;
+        }
+        CompactHierarchy libraryHierarchy = getLibraryHierarchy(composableClass);
+        if (libraryHierarchy != null) {
+            composeCompact(path, parent, libraryHierarchy, CompactHierarchy.ROOT);
+            return;
+        }
+        composeRecursive(path, parent, getComposableHierarchy(composableClass).root);
+    }
+
+    private void composeBorderBody(@NotNull StringBuilder path, @NotNull ClassItem parent, @NotNull PsiClass borderClass) {
+        PsiClass composableClass = getComposableClass(borderClass);
+        if (composableClass == null) {
+            return;
+        }
+        CompactHierarchy libraryHierarchy = getLibraryHierarchy(composableClass);
+        if (libraryHierarchy != null) {
+            int body = libraryHierarchy.findChild(CompactHierarchy.ROOT, Constants.WICKET_BODY);
+            if (body != CompactHierarchy.NONE) {
+                composeCompact(path, parent, libraryHierarchy, body);
+            }
+            return;
+        }
+        ClassItem body = getComposableHierarchy(composableClass).root.findChild(Constants.WICKET_BODY); // cached -> computed once per border
+        if (body != null) {
+            composeRecursive(path, parent, body);
+        }
+    }
+
+    /**
+     * @return source of superClass if its hierarchy can be composed into this one, else null
+     */
+    @Nullable
+    private static PsiClass getComposableClass(@NotNull PsiClass superClass) {
+        // use source if available
+        PsiElement navigationElement = superClass.getNavigationElement();
+        if (navigationElement instanceof PsiClass) {
+            superClass = (PsiClass) navigationElement;
+        }
+        if (superClass instanceof PsiCompiledElement || !WicketForgeUtil.isMarkupContainer(superClass)) {
+            return null; // nothing to visit or no components can be added
+        }
+        String qualifiedName = superClass.getQualifiedName();
+        if (qualifiedName != null && qualifiedName.startsWith(WICKET_PACKAGE_PREFIX)) {
+            return null; // wicket itself adds no components of interest
+        }
+        if (BUILDING.get().contains(superClass)) {
+            return null; // cyclic inheritance
+        }
+        return superClass;
+    }
+
+    /**
+     * @return persisted hierarchy of a superClass from a library (registered as dependency), so library sources are
+     *         not visited again every session, or null if superClass is not part of a library
+     */
+    @Nullable
+    private CompactHierarchy getLibraryHierarchy(@NotNull PsiClass superClass) {
+        PsiFile psiFile = superClass.getContainingFile();
+        VirtualFile virtualFile = psiFile == null ? null : psiFile.getVirtualFile();
+        if (virtualFile == null || superClass.getQualifiedName() == null || !WicketForgeLibraryCache.isLibraryFile(virtualFile)) {
+            return null;
+        }
+        dependencies.add(superClass);
+        return WicketForgeHierarchyCache.getInstance(superClass.getProject()).getClassHierarchy(superClass);
+    }
+
+    /**
+     * @return (cached) hierarchy of superClass to compose into this one (registered as dependency)
+     */
+    @NotNull
+    private WicketClassHierarchy getComposableHierarchy(@NotNull PsiClass superClass) {
+        WicketClassHierarchy superHierarchy = create(superClass);
+        dependencies.add(superClass);
+        dependencies.addAll(superHierarchy.dependencies);
+        return superHierarchy;
+    }
+
+    private void composeRecursive(@NotNull StringBuilder path, @NotNull ClassItem parent, @NotNull ClassItem source) {
+        for (ClassItem sourceChild : source.getChilds()) {
+            int length = path.length();
+            try {
+                path.append(Constants.HIERARCHYSEPARATOR).append(sourceChild.getWicketId());
+
+                ClassItem child = findOrCreateChild(path, parent, sourceChild.getWicketId());
+                for (ClassItem.NewComponentReference newComponentReference : sourceChild.getReferences()) {
+                    child.addReference(newComponentReference);
+                    putPath(newComponentReference.getWicketIdExpression(), path);
+                }
+                for (int i = 0; i < sourceChild.getLibraryReferenceCount(); i++) {
+                    child.addLibraryReference(sourceChild.getLibraryReferenceUrl(i), sourceChild.getLibraryReferenceOffset(i));
+                }
+
+                composeRecursive(path, child, sourceChild);
+            } finally {
+                path.setLength(length);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #composeRecursive(StringBuilder, ClassItem, ClassItem)} for a library hierarchy, references are
+     * kept as file url and offset (see {@link ClassItem#getLibraryReferenceCount()}).
+     */
+    private void composeCompact(@NotNull StringBuilder path, @NotNull ClassItem parent, @NotNull CompactHierarchy source, int sourceNode) {
+        for (int sourceChild = source.getFirstChild(sourceNode); sourceChild != CompactHierarchy.NONE; sourceChild = source.getNextSibling(sourceChild)) {
+            int length = path.length();
+            try {
+                path.append(Constants.HIERARCHYSEPARATOR).append(source.getWicketId(sourceChild));
+
+                ClassItem child = findOrCreateChild(path, parent, source.getWicketId(sourceChild));
+                for (int i = 0; i < source.getReferenceCount(sourceChild); i++) {
+                    String url = source.getReferenceFileUrl(sourceChild, i);
+                    if (url != null) {
+                        child.addLibraryReference(url, source.getReferenceOffset(sourceChild, i));
+                    }
+                }
+
+                composeCompact(path, child, source, sourceChild);
+            } finally {
+                path.setLength(length);
             }
         }
     }
@@ -436,11 +992,22 @@ public class WicketClassHierarchy {
         if (child == null) {
             child = new ClassItem(wicketId);
             parent.addChild(child);
-            wicketIdPathMap.put(path.toString(), child);
+            if (markupProvider == null) {
+                wicketIdPathMap.put(path.toString(), child);
+            }
         }
         return child;
     }
 
+    private void putPath(@NotNull PsiExpression wicketIdExpression, @NotNull StringBuilder path) {
+        if (markupProvider != null) {
+            // path belongs to the hierarchy of the markupProvider (composed there)
+            markupProviders.put(wicketIdExpression, markupProvider);
+        } else if (!wicketIdExpressionPathMap.containsKey(wicketIdExpression)) {
+            wicketIdExpressionPathMap.put(wicketIdExpression, path.toString());
+        }
+    }
+
     /**
      * @return PsiClass of method return or null
      */
@@ -457,7 +1024,7 @@ public class WicketClassHierarchy {
 
     @NotNull
     public Map<String, ClassItem> getWicketIdPathMap() {
-        return wicketIdPathMap;
+        return Collections.unmodifiableMap(wicketIdPathMap);
     }
 
     @NotNull
@@ -465,27 +1032,93 @@ public class WicketClassHierarchy {
         return root;
     }
 
+    /**
+     * @return other elements this hierarchy is built from (composed superclasses, factory methods)
+     */
+    @NotNull
+    Set<PsiElement> getDependencies() {
+        return Collections.unmodifiableSet(dependencies);
+    }
+
+    /**
+     * @return true if the time budget was exceeded while building, so not all components are part of this hierarchy
+     */
+    public boolean isIncomplete() {
+        return incomplete;
+    }
+
+    /**
+     * @param wicketIdExpression    wicketId expression of a new component
+     * @return                      path of the component in this hierarchy or null if it is not added
+     */
     @Nullable
-    public static String findPathOf(@NotNull PsiClass psiClass, @NotNull PsiExpression wicketIdExpression, boolean parent, boolean incomplete) {
-        WicketClassHierarchy hierarchy = create(psiClass);
-        for (Map.Entry<String, ClassItem> entry : hierarchy.getWicketIdPathMap().entrySet()) {
-            for (ClassItem.NewComponentReference newComponentReference : entry.getValue().getReferences()) {
-                if (wicketIdExpression.equals(newComponentReference.getWicketIdExpression())) {
-                    String path = entry.getKey();
-                    return parent ? path.substring(0, path.lastIndexOf(Constants.HIERARCHYSEPARATOR)) : path;
+    public String getPathOf(@NotNull PsiExpression wicketIdExpression) {
+        return wicketIdExpressionPathMap.get(wicketIdExpression);
+    }
+
+    /**
+     * @param wicketIdExpression    wicketId expression of a new component
+     * @return                      markupProvider class if the component belongs to a fragment in the markup of
+     *                              another class ex 'new Fragment("id", "markupId", myPanel)' (the path is part of
+     *                              its hierarchy), else null
+     */
+    @Nullable
+    public PsiClass getMarkupProviderOf(@NotNull PsiExpression wicketIdExpression) {
+        return markupProviders.get(wicketIdExpression);
+    }
+
+    /**
+     * @param callExpression    call of a component factory method ex: 'createNameField("name")'
+     * @param argumentIndex     index of the call argument
+     * @return                  class of the component the factory method creates with the argument as wicketId or
+     *                          null if the argument is no wicketId
+     */
+    @Nullable
+    public static PsiClass getFactoryComponentClass(@NotNull PsiMethodCallExpression callExpression, int argumentIndex) {
+        PsiMethod method = callExpression.resolveMethod();
+        if (method == null) {
+            return null;
+        }
+        ComponentFactorySummary summary = ComponentFactorySummary.getInstance(method);
+        for (List<ComponentFactorySummary.Entry> entries : Arrays.asList(summary.getReturned(), summary.getAdded())) {
+            for (ComponentFactorySummary.Entry entry : entries) {
+                if (entry.getParameterIndex() == argumentIndex) {
+                    PsiJavaCodeReferenceElement referenceElement = entry.getNewExpression().getClassOrAnonymousClassReference();
+                    PsiElement resolvedElement = referenceElement == null ? null : referenceElement.resolve();
+                    if (resolvedElement instanceof PsiClass) {
+                        return (PsiClass) resolvedElement;
+                    }
                 }
             }
         }
+        return null;
+    }
+
+    @Nullable
+    public static String findPathOf(@NotNull PsiClass psiClass, @NotNull PsiExpression wicketIdExpression, boolean parent, boolean incomplete) {
+        return findPathOf(create(psiClass), psiClass, wicketIdExpression, parent, incomplete);
+    }
+
+    @Nullable
+    public static String findPathOf(@NotNull WicketClassHierarchy hierarchy, @NotNull PsiClass psiClass, @NotNull PsiExpression wicketIdExpression, boolean parent, boolean incomplete) {
+        String path = hierarchy.getPathOf(wicketIdExpression);
+        if (path != null) {
+            return parent ? path.substring(0, path.lastIndexOf(Constants.HIERARCHYSEPARATOR)) : path;
+        }
         if (incomplete) {
             // ok, wicket expression is not added yet so we dont know hierarchy of our component
             // lets try to find textual position in hierarchy, not best method but we have no other option
             // If component gets added later, correct hierarchy gets checked...
             final TextRange wicketIdTextRange = wicketIdExpression.getTextRange();
+            final PsiFile file = wicketIdExpression.getContainingFile();
             String bestPath = "";
             TextRange bestTextRange = psiClass.getTextRange();
             // go thru all new references
             for (Map.Entry<String, ClassItem> entry : hierarchy.getWicketIdPathMap().entrySet()) {
                 for (ClassItem.NewComponentReference newComponentReference : entry.getValue().getReferences()) {
+                    if (newComponentReference.getNewExpression().getContainingFile() != file) {
+                        continue; // composed from superclass
+                    }
                     TextRange textRange = newComponentReference.getNewExpression().getTextRange();
                     // if wicketId is in new-references-textRange and this is inner of current best...
                     if (textRange.contains(wicketIdTextRange) && bestTextRange.contains(textRange)) {
@@ -500,6 +1133,18 @@ public class WicketClassHierarchy {
         return null;
     }
 
+    /**
+     * Thrown by the visitor to stop building when the time budget is exceeded (no stacktrace needed).
+     */
+    private static final class TimeBudgetExceededException extends RuntimeException {
+        private static final TimeBudgetExceededException INSTANCE = new TimeBudgetExceededException();
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
     private static final class MarkupReferences {
         private Stack<List<? extends PsiElement>> currentStack = new Stack<List<? extends PsiElement>>();
         private Map<PsiVariable, List<? extends PsiElement>> variableMap = new HashMap<PsiVariable, List<? extends PsiElement>>();
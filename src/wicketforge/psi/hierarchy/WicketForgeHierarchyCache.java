@@ -0,0 +1,405 @@
+/*
+ * Copyright 2010 The WicketForge-Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wicketforge.psi.hierarchy;
+
+import com.intellij.openapi.components.AbstractProjectComponent;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.OrderEntry;
+import com.intellij.openapi.roots.OrderEnumerator;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.vfs.JarFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.xml.XmlFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import wicketforge.WicketForgeResourceCache;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.*;
+
+/**
+ * Project wide, memory bounded cache of {@link CompactHierarchy}'s.
+ * <p/>
+ * Entries are soft referenced and evicted in LRU order, collected entries are removed (and their memory subtracted)
+ * on the next access. Entries hold no PSI and on a miss the hierarchy is built without caching it on the PSI, so
+ * cached hierarchies don't keep PSI trees of closed files (only hierarchies of composed superclasses, borders and
+ * base markup are cached on their PSI, they are shared by all users). An entry is valid as long as all files it was built from are unchanged (and for class hierarchies
+ * and markup extensions the java structure, for markup extensions also the resolution of markup files). Hierarchies
+ * of library files are also kept in the persistent {@link WicketForgeLibraryCache} (per library classpath). Bounds can be set by the system
+ * properties 'wicketforge.hierarchyCache.maxEntries' and 'wicketforge.hierarchyCache.maxMemoryKb'.
+ */
+public class WicketForgeHierarchyCache extends AbstractProjectComponent {
+    private static final Logger LOG = Logger.getInstance("#wicketforge.psi.hierarchy.WicketForgeHierarchyCache");
+    private static final int MAX_ENTRIES = Integer.getInteger("wicketforge.hierarchyCache.maxEntries", 2000);
+    private static final long MAX_MEMORY = Long.getLong("wicketforge.hierarchyCache.maxMemoryKb", 16 * 1024L) * 1024L;
+
+    private final PsiManager psiManager;
+    private final LinkedHashMap<String, CacheValue> values = new LinkedHashMap<String, CacheValue>(16, 0.75f, true); // access order -> LRU
+    private final ReferenceQueue<Entry> collectedValues = new ReferenceQueue<Entry>();
+    private long memory; // estimated memory of all values
+    private Map<String, Entry> batchEntries; // entries put since keepUntilPsiChange, strongly referenced and not bounded
+    private long batchModificationCount;
+    private final Map<VirtualFile, Integer> classpathHashes = new HashMap<VirtualFile, Integer>(); // Key: jar file (guarded by itself)
+    private long classpathModificationCount = -1;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public WicketForgeHierarchyCache(Project project, PsiManager psiManager) {
+        super(project);
+        this.psiManager = psiManager;
+    }
+
+    @NotNull
+    public static WicketForgeHierarchyCache getInstance(@NotNull Project project) {
+        return project.getComponent(WicketForgeHierarchyCache.class);
+    }
+
+    @NotNull
+    @Override
+    public String getComponentName() {
+        return "WicketForgeHierarchyCache";
+    }
+
+    @Override
+    public void projectClosed() {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(toString());
+        }
+        clear();
+    }
+
+    /**
+     * @param psiClass  PsiClass
+     * @return          compact form of {@link WicketClassHierarchy#create(PsiClass)}
+     */
+    @NotNull
+    public CompactHierarchy getClassHierarchy(@NotNull PsiClass psiClass) {
+        // compiled library class -> attached sources
+        PsiElement navigationElement = psiClass.getNavigationElement();
+        if (navigationElement instanceof PsiClass) {
+            psiClass = (PsiClass) navigationElement;
+        }
+        String qualifiedName = psiClass.getQualifiedName();
+        VirtualFile virtualFile = getVirtualFile(psiClass);
+        if (qualifiedName == null || virtualFile == null) {
+            return CompactHierarchy.create(WicketClassHierarchy.create(psiClass)); // local, anonymous or non physical class
+        }
+        String key = virtualFile.getUrl() + '!' + qualifiedName;
+        WicketForgeLibraryCache libraryCache = WicketForgeLibraryCache.isLibraryFile(virtualFile) ? WicketForgeLibraryCache.getInstance() : null;
+        int classpathHash = libraryCache == null ? 0 : getClasspathHash(virtualFile);
+        if (libraryCache != null) {
+            CompactHierarchy compactHierarchy = libraryCache.get(key, classpathHash);
+            if (compactHierarchy != null) {
+                return compactHierarchy;
+            }
+        }
+        long javaStructureModificationCount = psiManager.getModificationTracker().getJavaStructureModificationCount();
+        Entry entry = get(key, javaStructureModificationCount, -1);
+        if (entry != null) {
+            return entry.hierarchy;
+        }
+        WicketClassHierarchy hierarchy = WicketClassHierarchy.createUncached(psiClass);
+        List<PsiElement> dependencies = new ArrayList<PsiElement>(hierarchy.getDependencies());
+        dependencies.add(psiClass);
+        entry = new Entry(CompactHierarchy.create(hierarchy), dependencies, javaStructureModificationCount, -1);
+        put(key, entry);
+        if (libraryCache != null) {
+            libraryCache.put(key, entry.hierarchy, Arrays.asList(entry.fileUrls), classpathHash);
+        }
+        return entry.hierarchy;
+    }
+
+    /**
+     * @param xmlFile   markup file
+     * @return          compact form of {@link WicketMarkupHierarchy#create(XmlFile)}
+     */
+    @NotNull
+    public CompactHierarchy getMarkupHierarchy(@NotNull XmlFile xmlFile) {
+        VirtualFile virtualFile = xmlFile.getVirtualFile();
+        if (virtualFile == null) {
+            return CompactHierarchy.create(WicketMarkupHierarchy.create(xmlFile));
+        }
+        String key = virtualFile.getUrl();
+        WicketForgeLibraryCache libraryCache = WicketForgeLibraryCache.isLibraryFile(virtualFile) ? WicketForgeLibraryCache.getInstance() : null;
+        int classpathHash = libraryCache == null ? 0 : getClasspathHash(virtualFile);
+        if (libraryCache != null) {
+            CompactHierarchy compactHierarchy = libraryCache.get(key, classpathHash);
+            if (compactHierarchy != null) {
+                return compactHierarchy;
+            }
+        }
+        long javaStructureModificationCount = psiManager.getModificationTracker().getJavaStructureModificationCount();
+        long resourceModificationCount = WicketForgeResourceCache.getInstance(myProject).getModificationCount();
+        Entry entry = get(key, javaStructureModificationCount, resourceModificationCount);
+        if (entry != null) {
+            return entry.hierarchy;
+        }
+        WicketMarkupHierarchy hierarchy = WicketMarkupHierarchy.createUncached(xmlFile);
+        List<PsiElement> dependencies = new ArrayList<PsiElement>(hierarchy.getDependencies());
+        dependencies.add(xmlFile);
+        // markup inheritance depends on superclasses and their markup files (like the CachedValue of WicketMarkupHierarchy)
+        entry = hierarchy.isExtension()
+                ? new Entry(CompactHierarchy.create(hierarchy), dependencies, javaStructureModificationCount, resourceModificationCount)
+                : new Entry(CompactHierarchy.create(hierarchy), dependencies, -1, -1);
+        put(key, entry);
+        if (libraryCache != null) {
+            libraryCache.put(key, entry.hierarchy, Arrays.asList(entry.fileUrls), classpathHash);
+        }
+        return entry.hierarchy;
+    }
+
+    /**
+     * Hierarchies of a library depend on the resolution of its classes (ex: superclass from another jar), so they are
+     * only valid for the same classpath.
+     *
+     * @return hash of the library classpath of all modules using the library of virtualFile (cached until roots change)
+     */
+    private int getClasspathHash(@NotNull VirtualFile virtualFile) {
+        VirtualFile jarFile = JarFileSystem.getInstance().getVirtualFileForJar(virtualFile);
+        if (jarFile == null) {
+            return 0;
+        }
+        ProjectRootManager projectRootManager = ProjectRootManager.getInstance(myProject);
+        long modificationCount = projectRootManager.getModificationCount();
+        synchronized (classpathHashes) {
+            if (classpathModificationCount != modificationCount) {
+                classpathHashes.clear();
+                classpathModificationCount = modificationCount;
+            }
+            Integer hash = classpathHashes.get(jarFile);
+            if (hash != null) {
+                return hash;
+            }
+        }
+        Set<String> urls = new TreeSet<String>();
+        for (OrderEntry orderEntry : projectRootManager.getFileIndex().getOrderEntriesForFile(virtualFile)) {
+            urls.addAll(Arrays.asList(OrderEnumerator.orderEntries(orderEntry.getOwnerModule()).recursively().librariesOnly().classes().getUrls()));
+        }
+        int hash = 0;
+        for (String url : urls) {
+            hash = 31 * hash + url.hashCode();
+        }
+        synchronized (classpathHashes) {
+            if (classpathModificationCount == modificationCount) {
+                classpathHashes.put(jarFile, hash);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Keeps all hierarchies put from now on until the next psi change, independent of the bounds (used by the batch
+     * analysis before inspections, so the inspected files find all hierarchies of the scope).
+     */
+    public synchronized void keepUntilPsiChange() {
+        long modificationCount = psiManager.getModificationTracker().getModificationCount();
+        if (batchEntries == null || batchModificationCount != modificationCount) {
+            batchEntries = new HashMap<String, Entry>();
+            batchModificationCount = modificationCount;
+        }
+    }
+
+    public synchronized void clear() {
+        values.clear();
+        memory = 0;
+        batchEntries = null;
+        removeCollected();
+    }
+
+    public synchronized int getSize() {
+        removeCollected();
+        return values.size();
+    }
+
+    /**
+     * @return estimated memory of cached hierarchies in bytes
+     */
+    public synchronized long getEstimatedMemory() {
+        removeCollected();
+        return memory;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return count of entries removed to stay in bounds (collected or outdated entries not included)
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WicketForgeHierarchyCache: " + values.size() + "/" + MAX_ENTRIES + " entries, " + (memory / 1024) + "/" + (MAX_MEMORY / 1024) + "kb, "
+                + hitCount + " hits, " + missCount + " misses, " + evictionCount + " evictions";
+    }
+
+    /**
+     * @return up to date entry or null (counts as hit or miss)
+     */
+    @Nullable
+    private Entry get(@NotNull String key, long javaStructureModificationCount, long resourceModificationCount) {
+        CacheValue value;
+        Entry entry;
+        synchronized (this) {
+            removeCollected();
+            value = values.get(key);
+            entry = value == null ? null : value.get();
+            if (entry == null && getBatchEntries() != null) {
+                entry = batchEntries.get(key); // evicted or collected
+            }
+        }
+        // check outside of lock, needs psi
+        if (entry != null && ((entry.javaStructureModificationCount >= 0 && entry.javaStructureModificationCount != javaStructureModificationCount)
+                || (entry.resourceModificationCount >= 0 && entry.resourceModificationCount != resourceModificationCount)
+                || !entry.isUpToDate(psiManager))) {
+            entry = null;
+        }
+        synchronized (this) {
+            if (entry == null) {
+                missCount++;
+                if (value != null && values.get(key) == value) {
+                    remove(key);
+                }
+            } else {
+                hitCount++;
+            }
+        }
+        return entry;
+    }
+
+    private synchronized void put(@NotNull String key, @NotNull Entry entry) {
+        removeCollected();
+        remove(key);
+        if (getBatchEntries() != null) {
+            batchEntries.put(key, entry);
+        }
+        CacheValue value = new CacheValue(key, entry, collectedValues);
+        values.put(key, value);
+        memory += value.size;
+        // evict least recently used
+        Iterator<CacheValue> iterator = values.values().iterator();
+        while ((values.size() > MAX_ENTRIES || memory > MAX_MEMORY) && values.size() > 1 && iterator.hasNext()) {
+            CacheValue eldest = iterator.next();
+            iterator.remove();
+            memory -= eldest.size;
+            evictionCount++;
+        }
+    }
+
+    private void remove(@NotNull String key) {
+        CacheValue value = values.remove(key);
+        if (value != null) {
+            memory -= value.size;
+        }
+    }
+
+    /**
+     * @return entries of the batch analysis or null if there is none or psi has changed since (they are dropped then)
+     */
+    @Nullable
+    private Map<String, Entry> getBatchEntries() {
+        if (batchEntries != null && batchModificationCount != psiManager.getModificationTracker().getModificationCount()) {
+            batchEntries = null;
+        }
+        return batchEntries;
+    }
+
+    /**
+     * Removes values whose entry has been collected (values already removed are ignored).
+     */
+    private void removeCollected() {
+        CacheValue value;
+        while ((value = (CacheValue) collectedValues.poll()) != null) {
+            if (values.get(value.key) == value) {
+                remove(value.key);
+            }
+        }
+    }
+
+    @Nullable
+    private static VirtualFile getVirtualFile(@NotNull PsiElement element) {
+        PsiFile psiFile = element.getContainingFile();
+        return psiFile == null ? null : psiFile.getVirtualFile();
+    }
+
+    private static final class CacheValue extends SoftReference<Entry> {
+        private final String key;
+        private final long size;
+
+        private CacheValue(@NotNull String key, @NotNull Entry entry, @NotNull ReferenceQueue<Entry> queue) {
+            super(entry, queue);
+            this.key = key;
+            this.size = entry.hierarchy.getEstimatedSize() + 16L * entry.fileUrls.length;
+        }
+    }
+
+    private static final class Entry {
+        private final CompactHierarchy hierarchy;
+        private final String[] fileUrls; // files the hierarchy is built from
+        private final long[] modificationStamps;
+        private final long javaStructureModificationCount; // -1 if independent of java structure
+        private final long resourceModificationCount; // -1 if independent of markup resolution (WicketForgeResourceCache)
+
+        private Entry(@NotNull CompactHierarchy hierarchy, @NotNull Collection<PsiElement> dependencies, long javaStructureModificationCount, long resourceModificationCount) {
+            this.hierarchy = hierarchy;
+            this.javaStructureModificationCount = javaStructureModificationCount;
+            this.resourceModificationCount = resourceModificationCount;
+            Map<String, Long> files = new HashMap<String, Long>();
+            for (PsiElement dependency : dependencies) {
+                PsiFile psiFile = dependency.getContainingFile();
+                VirtualFile virtualFile = psiFile == null ? null : psiFile.getVirtualFile();
+                if (virtualFile != null) {
+                    files.put(virtualFile.getUrl(), psiFile.getModificationStamp());
+                }
+            }
+            this.fileUrls = new String[files.size()];
+            this.modificationStamps = new long[files.size()];
+            int i = 0;
+            for (Map.Entry<String, Long> file : files.entrySet()) {
+                fileUrls[i] = file.getKey();
+                modificationStamps[i] = file.getValue();
+                i++;
+            }
+        }
+
+        private boolean isUpToDate(@NotNull PsiManager psiManager) {
+            VirtualFileManager virtualFileManager = VirtualFileManager.getInstance();
+            for (int i = 0; i < fileUrls.length; i++) {
+                VirtualFile virtualFile = virtualFileManager.findFileByUrl(fileUrls[i]);
+                PsiFile psiFile = virtualFile == null ? null : psiManager.findFile(virtualFile);
+                if (psiFile == null || psiFile.getModificationStamp() != modificationStamps[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2010 The WicketForge-Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wicketforge.psi.hierarchy;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.ApplicationComponent;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.JarFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Persistent cache of {@link CompactHierarchy}'s of library (jar) files, so libraries are analysed once per jar
+ * version instead of once per session.
+ * <p/>
+ * An entry is valid as long as all jars it was built from have the same length and timestamp and it is requested for
+ * the same classpath (hash of the library classpath of the modules using the jar, see
+ * {@link WicketForgeHierarchyCache}). Entries are loaded on
+ * first use from and saved on exit to the wicketforge directory in the system path. Least recently used entries are
+ * evicted, bounds can be set by the system properties 'wicketforge.libraryCache.maxEntries' and
+ * 'wicketforge.libraryCache.maxMemoryKb'. File IO is never done while holding the lock of the entries.
+ */
+public class WicketForgeLibraryCache implements ApplicationComponent {
+    private static final Logger LOG = Logger.getInstance("#wicketforge.psi.hierarchy.WicketForgeLibraryCache");
+    private static final int VERSION = 2;
+    private static final int MAX_ENTRIES = Integer.getInteger("wicketforge.libraryCache.maxEntries", 5000);
+    private static final long MAX_MEMORY = Long.getLong("wicketforge.libraryCache.maxMemoryKb", 32 * 1024L) * 1024L;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true); // access order -> LRU
+    private final Object loadLock = new Object();
+    private volatile boolean loaded;
+    private long memory; // estimated memory of all entries
+    private boolean modified;
+
+    @NotNull
+    public static WicketForgeLibraryCache getInstance() {
+        return ApplicationManager.getApplication().getComponent(WicketForgeLibraryCache.class);
+    }
+
+    @NotNull
+    public String getComponentName() {
+        return "WicketForgeLibraryCache";
+    }
+
+    public void initComponent() {
+        // loaded on first use
+    }
+
+    public void disposeComponent() {
+        Map<String, Entry> snapshot;
+        synchronized (this) {
+            if (!modified) {
+                return;
+            }
+            snapshot = new LinkedHashMap<String, Entry>(entries);
+            modified = false;
+        }
+        save(snapshot);
+    }
+
+    /**
+     * @return true if file is part of a jar
+     */
+    public static boolean isLibraryFile(@NotNull VirtualFile virtualFile) {
+        return virtualFile.getFileSystem() instanceof JarFileSystem;
+    }
+
+    /**
+     * @param key           key ex: file url
+     * @param classpathHash hash of the classpath the hierarchy is resolved in
+     * @return              up to date hierarchy or null
+     */
+    @Nullable
+    public CompactHierarchy get(@NotNull String key, int classpathHash) {
+        load();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        if (entry.classpathHash != classpathHash || !entry.isUpToDate()) { // file stats outside of lock
+            synchronized (this) {
+                if (entries.get(key) == entry) {
+                    remove(key);
+                    modified = true;
+                }
+            }
+            return null;
+        }
+        return entry.hierarchy;
+    }
+
+    /**
+     * Stores hierarchy if all files it was built from are part of jars.
+     *
+     * @param key       key ex: file url
+     * @param hierarchy CompactHierarchy
+     * @param fileUrls  urls of all files the hierarchy was built from
+     * @param classpathHash hash of the classpath the hierarchy was resolved in
+     */
+    public void put(@NotNull String key, @NotNull CompactHierarchy hierarchy, @NotNull Collection<String> fileUrls, int classpathHash) {
+        Set<String> jarPaths = new HashSet<String>();
+        for (String fileUrl : fileUrls) {
+            String jarPath = getJarPath(fileUrl);
+            if (jarPath == null) {
+                return; // depends on a non library file
+            }
+            jarPaths.add(jarPath);
+        }
+        load();
+        String[] paths = jarPaths.toArray(new String[jarPaths.size()]);
+        long[] lengths = new long[paths.length];
+        long[] timeStamps = new long[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            File jarFile = new File(paths[i]);
+            lengths[i] = jarFile.length();
+            timeStamps[i] = jarFile.lastModified();
+        }
+        Entry entry = new Entry(hierarchy, paths, lengths, timeStamps, classpathHash);
+        synchronized (this) {
+            put(key, entry);
+            modified = true;
+        }
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return estimated memory of cached hierarchies in bytes
+     */
+    public synchronized long getEstimatedMemory() {
+        return memory;
+    }
+
+    private void put(@NotNull String key, @NotNull Entry entry) {
+        remove(key);
+        entries.put(key, entry);
+        memory += entry.getEstimatedSize();
+        // evict least recently used
+        Iterator<Entry> iterator = entries.values().iterator();
+        while ((entries.size() > MAX_ENTRIES || memory > MAX_MEMORY) && entries.size() > 1 && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            memory -= eldest.getEstimatedSize();
+        }
+    }
+
+    private void remove(@NotNull String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            memory -= entry.getEstimatedSize();
+        }
+    }
+
+    /**
+     * @return local path of jar or null if url is not a jar url
+     */
+    @Nullable
+    private static String getJarPath(@NotNull String url) {
+        if (!url.startsWith(JarFileSystem.PROTOCOL_PREFIX)) {
+            return null;
+        }
+        int index = url.indexOf(JarFileSystem.JAR_SEPARATOR);
+        return index < 0 ? null : url.substring(JarFileSystem.PROTOCOL_PREFIX.length(), index);
+    }
+
+    @NotNull
+    private static File getCacheFile() {
+        return new File(PathManager.getSystemPath(), "wicketforge" + File.separator + "library-hierarchies.dat");
+    }
+
+    /**
+     * Loads the entries once (concurrent callers wait for it, but not the lock of the entries).
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        synchronized (loadLock) {
+            if (loaded) {
+                return;
+            }
+            Map<String, Entry> read = new LinkedHashMap<String, Entry>();
+            boolean rewrite = read(read);
+            synchronized (this) {
+                for (Map.Entry<String, Entry> entry : read.entrySet()) {
+                    if (!entries.containsKey(entry.getKey())) {
+                        put(entry.getKey(), entry.getValue());
+                    }
+                }
+                modified |= rewrite;
+            }
+            loaded = true;
+        }
+    }
+
+    /**
+     * @return true if file needs to be rewritten (old version, outdated entries or unreadable)
+     */
+    private static boolean read(@NotNull Map<String, Entry> result) {
+        File file = getCacheFile();
+        if (!file.exists()) {
+            return false;
+        }
+        boolean rewrite = false;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != VERSION) {
+                    return true; // rewrite in current version
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String key = in.readUTF();
+                    Entry entry = Entry.read(in);
+                    if (entry.isUpToDate()) {
+                        result.put(key, entry);
+                    } else {
+                        rewrite = true; // drop entries of old jar versions
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.info("Could not read " + file + ": " + e.getMessage());
+            result.clear();
+            rewrite = true;
+        }
+        return rewrite;
+    }
+
+    private static void save(@NotNull Map<String, Entry> snapshot) {
+        File file = getCacheFile();
+        try {
+            FileUtil.createParentDirs(file);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    entry.getValue().write(out);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOG.info("Could not write " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static final class Entry {
+        private final CompactHierarchy hierarchy;
+        private final String[] jarPaths;
+        private final long[] jarLengths;
+        private final long[] jarTimeStamps;
+        private final int classpathHash;
+
+        private Entry(@NotNull CompactHierarchy hierarchy, @NotNull String[] jarPaths, @NotNull long[] jarLengths, @NotNull long[] jarTimeStamps, int classpathHash) {
+            this.hierarchy = hierarchy;
+            this.jarPaths = jarPaths;
+            this.jarLengths = jarLengths;
+            this.jarTimeStamps = jarTimeStamps;
+            this.classpathHash = classpathHash;
+        }
+
+        private long getEstimatedSize() {
+            return hierarchy.getEstimatedSize() + 32L * jarPaths.length;
+        }
+
+        private boolean isUpToDate() {
+            for (int i = 0; i < jarPaths.length; i++) {
+                File jarFile = new File(jarPaths[i]);
+                if (jarFile.length() != jarLengths[i] || jarFile.lastModified() != jarTimeStamps[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void write(@NotNull DataOutput out) throws IOException {
+            out.writeInt(classpathHash);
+            out.writeInt(jarPaths.length);
+            for (int i = 0; i < jarPaths.length; i++) {
+                out.writeUTF(jarPaths[i]);
+                out.writeLong(jarLengths[i]);
+                out.writeLong(jarTimeStamps[i]);
+            }
+            hierarchy.write(out);
+        }
+
+        @NotNull
+        private static Entry read(@NotNull DataInput in) throws IOException {
+            int classpathHash = in.readInt();
+            int jarCount = in.readInt();
+            String[] jarPaths = new String[jarCount];
+            long[] jarLengths = new long[jarCount];
+            long[] jarTimeStamps = new long[jarCount];
+            for (int i = 0; i < jarCount; i++) {
+                jarPaths[i] = in.readUTF();
+                jarLengths[i] = in.readLong();
+                jarTimeStamps[i] = in.readLong();
+            }
+            return new Entry(CompactHierarchy.read(in), jarPaths, jarLengths, jarTimeStamps, classpathHash);
+        }
+    }
+}
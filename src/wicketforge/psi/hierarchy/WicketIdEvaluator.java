@@ -0,0 +1,68 @@
+/*
+ * Copyright 2010 The WicketForge-Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wicketforge.psi.hierarchy;
+
+import com.intellij.psi.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import wicketforge.WicketForgeUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Evaluates wicketId expressions (literals, constants and concatenations) while building a hierarchy.
+ * <p/>
+ * Results are cached per expression and per referenced constant (ex: 'add(new Label(ID_NAME))'), so constants used
+ * by many components get evaluated only once.
+ */
+final class WicketIdEvaluator {
+    private final Map<PsiExpression, String> expressionIds = new HashMap<PsiExpression, String>(); // null value: no constant
+    private final Map<PsiVariable, String> variableIds = new HashMap<PsiVariable, String>(); // null value: no constant
+
+    /**
+     * @param wicketIdExpression    wicketId expression
+     * @return                      the wicketId or null if expression is not a compile-time constant String
+     */
+    @Nullable
+    String evaluate(@NotNull PsiExpression wicketIdExpression) {
+        if (expressionIds.containsKey(wicketIdExpression)) {
+            return expressionIds.get(wicketIdExpression);
+        }
+        String result;
+        if (wicketIdExpression instanceof PsiLiteralExpression) {
+            Object value = ((PsiLiteralExpression) wicketIdExpression).getValue();
+            result = value instanceof String ? (String) value : null;
+        } else if (wicketIdExpression instanceof PsiReferenceExpression) {
+            PsiElement resolvedElement = ((PsiReferenceExpression) wicketIdExpression).resolve();
+            if (resolvedElement instanceof PsiVariable) {
+                PsiVariable variable = (PsiVariable) resolvedElement;
+                if (variableIds.containsKey(variable)) {
+                    result = variableIds.get(variable);
+                } else {
+                    result = WicketForgeUtil.getWicketIdFromExpression(wicketIdExpression);
+                    variableIds.put(variable, result);
+                }
+            } else {
+                result = null;
+            }
+        } else {
+            result = WicketForgeUtil.getWicketIdFromExpression(wicketIdExpression);
+        }
+        expressionIds.put(wicketIdExpression, result);
+        return result;
+    }
+}
@@ -15,41 +15,190 @@
  */
 package wicketforge.psi.hierarchy;
 
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.Ref;
+import com.intellij.psi.PsiClass;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.XmlRecursiveElementVisitor;
 import com.intellij.psi.xml.XmlAttribute;
 import com.intellij.psi.xml.XmlAttributeValue;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
 import com.intellij.psi.xml.XmlFile;
+import com.intellij.psi.xml.XmlTag;
+import com.intellij.util.text.CharArrayUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import wicketforge.Constants;
+import wicketforge.WicketForgeResourceCache;
+import wicketforge.WicketForgeUtil;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 /**
+ * Immutable after construction, so one (cached) instance can be shared by concurrent daemon threads.
+ * <p/>
+ * Markup inheritance: the &lt;wicket:extend&gt; section of a markup is spliced into the &lt;wicket:child&gt; of the
+ * (merged) base markup of the nearest superclass with markup. Only the items on the path to &lt;wicket:child&gt; are
+ * copied, all other items are shared with the cached hierarchy of the base markup.
+ * <p/>
+ * Fragments: a &lt;wicket:fragment wicket:id="markupId"&gt; is not part of the tree at its position, it is an own sub
+ * hierarchy at root with wicketId '~markupId' (see {@link Constants#FRAGMENTPREFIX}), like the components added to a
+ * Fragment in {@link WicketClassHierarchy}.
+ * <p/>
+ * Borders: only the ids inside &lt;wicket:border&gt; are used, the position of &lt;wicket:body&gt; is kept as
+ * {@link #getBodyPath()}.
  */
 public class WicketMarkupHierarchy {
-    private Map<String, AttributeItem> wicketIdPathMap;
-    private AttributeItem root;
+    private static final Logger LOG = Logger.getInstance("#wicketforge.psi.hierarchy.WicketMarkupHierarchy");
+    private static final Key<CachedValue<WicketMarkupHierarchy>> HIERARCHY_KEY = Key.create("WICKET_MARKUP_HIERARCHY");
+    /**
+     * Markup files whose hierarchy is currently built by this thread (prevents endless recursion on cyclic inheritance).
+     */
+    private static final ThreadLocal<Set<XmlFile>> BUILDING = new ThreadLocal<Set<XmlFile>>() {
+        @Override
+        protected Set<XmlFile> initialValue() {
+            return new HashSet<XmlFile>();
+        }
+    };
+
+    private final Map<String, AttributeItem> wicketIdPathMap;
+    private final Map<XmlAttributeValue, String> attributeValuePathMap; // reverse of wicketIdPathMap: attributeValue -> path
+    private final AttributeItem root;
+    private final boolean extension; // has <wicket:extend>
+    private final String childPath; // path of <wicket:child> or null
+    private final String bodyPath; // path of <wicket:body> (border markup) or null
+    private final List<XmlFile> dependencies; // merged base markup files
+
+    /**
+     * Returns the hierarchy of the given markup file. The hierarchy is cached on the XmlFile and only gets rebuilt
+     * when this file (or for markup inheritance a base markup or the java structure) changes.
+     *
+     * @param xmlFile   XmlFile
+     * @return          WicketMarkupHierarchy
+     */
+    @NotNull
+    public static WicketMarkupHierarchy create(@NotNull final XmlFile xmlFile) {
+        return CachedValuesManager.getManager(xmlFile.getProject()).getCachedValue(xmlFile, HIERARCHY_KEY, new CachedValueProvider<WicketMarkupHierarchy>() {
+            public Result<WicketMarkupHierarchy> compute() {
+                WicketMarkupHierarchy hierarchy = build(xmlFile);
+                if (!hierarchy.extension) {
+                    return Result.create(hierarchy, xmlFile);
+                }
+                List<Object> dependencies = new ArrayList<Object>(hierarchy.dependencies.size() + 3);
+                dependencies.add(xmlFile);
+                dependencies.addAll(hierarchy.dependencies);
+                dependencies.add(PsiModificationTracker.JAVA_STRUCTURE_MODIFICATION_COUNT); // superclass
+                dependencies.add(WicketForgeResourceCache.getInstance(xmlFile.getProject())); // markup files
+                return Result.create(hierarchy, dependencies.toArray());
+            }
+        }, false);
+    }
 
+    /**
+     * Like {@link #create(XmlFile)}, but a hierarchy that is not cached yet is built without caching it on the
+     * XmlFile (used by {@link WicketForgeHierarchyCache}, so closed files don't keep it). Base markup hierarchies
+     * are still cached, they are shared by all extensions.
+     *
+     * @param xmlFile   XmlFile
+     * @return          WicketMarkupHierarchy
+     */
     @NotNull
-    public static WicketMarkupHierarchy create(@NotNull XmlFile xmlFile) {
-        return new WicketMarkupHierarchy(xmlFile);
+    static WicketMarkupHierarchy createUncached(@NotNull XmlFile xmlFile) {
+        CachedValue<WicketMarkupHierarchy> cachedValue = xmlFile.getUserData(HIERARCHY_KEY);
+        if (cachedValue != null && cachedValue.hasUpToDateValue()) {
+            return cachedValue.getValue();
+        }
+        return build(xmlFile);
+    }
+
+    @NotNull
+    private static WicketMarkupHierarchy build(@NotNull XmlFile xmlFile) {
+        long start = System.currentTimeMillis();
+        boolean extension = containsTag(xmlFile, Constants.WICKET_EXTEND);
+        boolean border = containsTag(xmlFile, Constants.WICKET_BORDER_TAG);
+        WicketMarkupHierarchy hierarchy;
+        Set<XmlFile> building = BUILDING.get();
+        building.add(xmlFile);
+        try {
+            XmlFile baseFile = extension ? findBaseMarkup(xmlFile) : null;
+            if (baseFile != null && building.contains(baseFile)) {
+                baseFile = null; // cyclic inheritance
+            }
+            WicketMarkupHierarchy base = baseFile == null ? null : create(baseFile); // cached per level -> shared by all extensions
+            hierarchy = new WicketMarkupHierarchy(xmlFile, extension, border, baseFile, base);
+        } finally {
+            building.remove(xmlFile);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("hierarchy of " + xmlFile.getName() + " built in " + (System.currentTimeMillis() - start) + "ms (" + hierarchy.wicketIdPathMap.size() + " paths)");
+        }
+        return hierarchy;
     }
 
-    private WicketMarkupHierarchy(@NotNull final XmlFile xmlFile) {
+    /**
+     * @param extension has &lt;wicket:extend&gt; -> only ids inside are used and spliced into base
+     * @param border    has &lt;wicket:border&gt; -> only ids inside are used
+     */
+    private WicketMarkupHierarchy(@NotNull XmlFile xmlFile, boolean extension, boolean border, @Nullable XmlFile baseFile, @Nullable WicketMarkupHierarchy base) {
         this.wicketIdPathMap = new HashMap<String, AttributeItem>();
-        this.root = new AttributeItem();
-        this.wicketIdPathMap.put("", root);
+        this.attributeValuePathMap = new IdentityHashMap<XmlAttributeValue, String>();
+        this.extension = extension;
 
+        final AttributeItem extendItem; // item to add the <wicket:extend> content to
+        final String extendPath;
+        if (base != null && base.childPath != null) {
+            wicketIdPathMap.putAll(base.wicketIdPathMap);
+            this.root = new AttributeItem(base.root);
+            wicketIdPathMap.put("", root);
+            // copy items on path to <wicket:child>
+            AttributeItem item = root;
+            int start = 0;
+            while (start < base.childPath.length()) {
+                int end = base.childPath.indexOf(Constants.HIERARCHYSEPARATOR, start + 1);
+                if (end < 0) {
+                    end = base.childPath.length();
+                }
+                String path = base.childPath.substring(0, end);
+                AttributeItem baseItem = base.wicketIdPathMap.get(path);
+                AttributeItem copy = new AttributeItem(baseItem);
+                item.replaceChild(baseItem, copy);
+                wicketIdPathMap.put(path, copy);
+                item = copy;
+                start = end;
+            }
+            extendItem = item;
+            extendPath = base.childPath;
+        } else {
+            this.root = new AttributeItem();
+            wicketIdPathMap.put("", root);
+            extendItem = root;
+            extendPath = "";
+        }
+        if (baseFile != null && base != null) {
+            this.dependencies = new ArrayList<XmlFile>(base.dependencies.size() + 1);
+            dependencies.add(baseFile);
+            dependencies.addAll(base.dependencies);
+        } else {
+            this.dependencies = Collections.emptyList();
+        }
+
+        final boolean sectioned = extension || border;
+        final Ref<String> childPathRef = new Ref<String>();
+        final Ref<String> bodyPathRef = new Ref<String>();
         xmlFile.accept(new XmlRecursiveElementVisitor() {
             private StringBuilder sb = new StringBuilder();
             private AttributeItem current = root;
+            private boolean inSection; // inside <wicket:extend> or <wicket:border>, if sectioned only these ids are used
 
             @Override
             public void visitElement(PsiElement element) {
+                ProgressManager.checkCanceled();
                 // save
                 int i = sb.length();
                 AttributeItem item = current;
@@ -65,17 +214,65 @@ public class WicketMarkupHierarchy {
                 }
             }
 
+            @Override
+            public void visitXmlTag(XmlTag tag) {
+                String name = tag.getName();
+                if (extension && !inSection && Constants.WICKET_EXTEND.equals(name)) {
+                    // continue at <wicket:child> of base markup
+                    visitXmlTag(tag, new StringBuilder(extendPath), extendItem, true);
+                    return;
+                }
+                if (border && !inSection && Constants.WICKET_BORDER_TAG.equals(name)) {
+                    visitXmlTag(tag, sb, current, true);
+                    return;
+                }
+                if (Constants.WICKET_FRAGMENT_TAG.equals(name)) {
+                    // fragment -> own sub hierarchy at root ex '#~markupId#name'
+                    visitXmlTag(tag, new StringBuilder(), root, inSection);
+                    return;
+                }
+                if (!sectioned || inSection) {
+                    if (Constants.WICKET_CHILD.equals(name) && childPathRef.isNull()) {
+                        childPathRef.set(sb.toString());
+                    } else if (Constants.WICKET_BODY.equals(name) && bodyPathRef.isNull()) {
+                        bodyPathRef.set(sb.toString());
+                    }
+                }
+                super.visitXmlTag(tag);
+            }
+
+            private void visitXmlTag(@NotNull XmlTag tag, @NotNull StringBuilder tagSb, @NotNull AttributeItem tagCurrent, boolean tagInSection) {
+                StringBuilder saveSb = sb;
+                AttributeItem saveCurrent = current;
+                boolean saveInSection = inSection;
+                sb = tagSb;
+                current = tagCurrent;
+                inSection = tagInSection;
+                try {
+                    super.visitXmlTag(tag);
+                } finally {
+                    sb = saveSb;
+                    current = saveCurrent;
+                    inSection = saveInSection;
+                }
+            }
+
             @Override
             public void visitXmlAttribute(XmlAttribute attribute) {
-                if (Constants.WICKET_ID.equals(attribute.getName())) {
+                if ((!sectioned || inSection) && Constants.WICKET_ID.equals(attribute.getName())) {
                     XmlAttributeValue attributeValue = attribute.getValueElement();
                     if (attributeValue != null) {
                         String wicketId = attributeValue.getValue();
+                        if (wicketId != null && Constants.WICKET_FRAGMENT_TAG.equals(attribute.getParent().getName())) {
+                            wicketId = Constants.FRAGMENTPREFIX + wicketId;
+                        }
                         if (wicketId != null) {
                             AttributeItem item = new AttributeItem(wicketId, attribute, attributeValue);
                             current.addChild(item);
                             sb.append(Constants.HIERARCHYSEPARATOR).append(wicketId);
-                            wicketIdPathMap.put(sb.toString(), item);
+                            String path = sb.toString();
+                            wicketIdPathMap.put(path, item);
+                            attributeValuePathMap.put(attributeValue, path);
                             current = item;
                         }
                     }
@@ -83,11 +280,13 @@ public class WicketMarkupHierarchy {
                 super.visitXmlAttribute(attribute);
             }
         });
+        this.childPath = childPathRef.get();
+        this.bodyPath = bodyPathRef.get();
     }
 
     @NotNull
     public Map<String, AttributeItem> getWicketIdPathMap() {
-        return wicketIdPathMap;
+        return Collections.unmodifiableMap(wicketIdPathMap);
     }
 
     @NotNull
@@ -95,16 +294,72 @@ public class WicketMarkupHierarchy {
         return root;
     }
 
+    /**
+     * @return true if markup has a &lt;wicket:extend&gt; (markup inheritance)
+     */
+    public boolean isExtension() {
+        return extension;
+    }
+
+    /**
+     * @return path of &lt;wicket:body&gt; in border markup or null
+     */
+    @Nullable
+    public String getBodyPath() {
+        return bodyPath;
+    }
+
+    /**
+     * @return base markup files merged into this hierarchy
+     */
+    @NotNull
+    List<XmlFile> getDependencies() {
+        return Collections.unmodifiableList(dependencies);
+    }
+
+    /**
+     * @param attributeValue    wicket:id attribute value
+     * @return                  path of the attribute in this hierarchy or null if not part of it
+     */
+    @Nullable
+    public String getPathOf(@NotNull XmlAttributeValue attributeValue) {
+        return attributeValuePathMap.get(attributeValue);
+    }
+
+    private static boolean containsTag(@NotNull XmlFile xmlFile, @NotNull String tagName) {
+        return CharArrayUtil.indexOf(xmlFile.getViewProvider().getContents(), "<" + tagName, 0) >= 0;
+    }
+
+    /**
+     * @return markup of the nearest superclass (with markup) of the markup class or null. Same variation/style/locale
+     *         like xmlFile if available ex 'BasePage_de.html' for 'MyPage_de.html'
+     */
+    @Nullable
+    private static XmlFile findBaseMarkup(@NotNull XmlFile xmlFile) {
+        PsiClass markupClass = WicketForgeUtil.getMarkupClass(xmlFile);
+        if (markupClass == null) {
+            return null;
+        }
+        String variation = WicketForgeUtil.getMarkupVariation(markupClass, xmlFile);
+        for (PsiClass superClass = markupClass.getSuperClass(); superClass != null; superClass = superClass.getSuperClass()) {
+            if (!WicketForgeUtil.isWicketComponentWithAssociatedMarkup(superClass)) {
+                return null;
+            }
+            PsiFile markupFile = WicketForgeUtil.getMarkupFile(superClass, variation);
+            if (markupFile instanceof XmlFile && markupFile != xmlFile) {
+                return (XmlFile) markupFile;
+            }
+        }
+        return null;
+    }
+
     @Nullable
     public static String findPathOf(@NotNull XmlAttributeValue attributeValue, boolean parent) {
         PsiFile psiFile = attributeValue.getContainingFile();
         if (psiFile instanceof XmlFile) {
-            WicketMarkupHierarchy hierarchy = create((XmlFile) psiFile);
-            for (Map.Entry<String, AttributeItem> entry : hierarchy.getWicketIdPathMap().entrySet()) {
-                if (attributeValue.equals(entry.getValue().getAttributeValue())) {
-                    String path = entry.getKey();
-                    return parent ? path.substring(0, path.lastIndexOf(Constants.HIERARCHYSEPARATOR)) : path;
-                }
+            String path = create((XmlFile) psiFile).getPathOf(attributeValue);
+            if (path != null) {
+                return parent ? path.substring(0, path.lastIndexOf(Constants.HIERARCHYSEPARATOR)) : path;
             }
         }
         return null;
@@ -21,15 +21,18 @@ import com.intellij.psi.impl.source.resolve.reference.impl.manipulators.StringLi
 import com.intellij.psi.xml.XmlFile;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.IncorrectOperationException;
+import com.intellij.util.SmartList;
 import org.jetbrains.annotations.NotNull;
 import wicketforge.WicketForgeUtil;
 import wicketforge.psi.hierarchy.AttributeItem;
 import wicketforge.psi.hierarchy.WicketClassHierarchy;
 import wicketforge.psi.hierarchy.WicketMarkupHierarchy;
 
+import java.util.List;
+
 /**
  */
-public class ClassWicketIdReference implements PsiReference {
+public class ClassWicketIdReference implements PsiPolyVariantReference {
     private PsiLiteralExpression wicketIdExpression;
     private PsiClass psiClass;
     private TextRange textRange;
@@ -49,18 +52,32 @@ public class ClassWicketIdReference implements PsiReference {
     }
 
     public PsiElement resolve() {
-        PsiFile markupFile = WicketForgeUtil.getMarkupFile(psiClass);
-        if (markupFile != null) {
+        // default markup first, else first variation (multiResolve for all)
+        ResolveResult[] resolveResults = multiResolve(false);
+        return resolveResults.length > 0 ? resolveResults[0].getElement() : null;
+    }
+
+    @NotNull
+    public ResolveResult[] multiResolve(boolean incompleteCode) {
+        // wicket:id in every markup variation/style/locale
+        List<PsiFile> markupFiles = WicketForgeUtil.getMarkupFiles(psiClass);
+        if (!markupFiles.isEmpty()) {
             String path = WicketClassHierarchy.findPathOf(psiClass, wicketIdExpression, false, false);
             if (path != null) {
-                WicketMarkupHierarchy hierarchy = WicketMarkupHierarchy.create((XmlFile) markupFile);
-                AttributeItem item = hierarchy.getWicketIdPathMap().get(path);
-                if (item != null) {
-                    return item.getAttributeValue();
+                List<ResolveResult> result = new SmartList<ResolveResult>();
+                for (PsiFile markupFile : markupFiles) {
+                    if (markupFile instanceof XmlFile) {
+                        WicketMarkupHierarchy hierarchy = WicketMarkupHierarchy.create((XmlFile) markupFile);
+                        AttributeItem item = hierarchy.getWicketIdPathMap().get(path);
+                        if (item != null) {
+                            result.add(new PsiElementResolveResult(item.getAttributeValue()));
+                        }
+                    }
                 }
+                return result.toArray(new ResolveResult[result.size()]);
             }
         }
-        return null;
+        return ResolveResult.EMPTY_ARRAY;
     }
 
     public String getCanonicalText() {
@@ -80,7 +97,12 @@ public class ClassWicketIdReference implements PsiReference {
     }
 
     public boolean isReferenceTo(PsiElement element) {
-        return wicketIdExpression.getManager().areElementsEquivalent(resolve(), element);
+        for (ResolveResult resolveResult : multiResolve(false)) {
+            if (wicketIdExpression.getManager().areElementsEquivalent(resolveResult.getElement(), element)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @NotNull
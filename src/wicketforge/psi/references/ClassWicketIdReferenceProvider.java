@@ -18,8 +18,12 @@ package wicketforge.psi.references;
 import com.intellij.psi.*;
 import com.intellij.util.ProcessingContext;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import wicketforge.WicketForgeUtil;
 import wicketforge.facet.WicketForgeFacet;
+import wicketforge.psi.hierarchy.WicketClassHierarchy;
+
+import java.util.Arrays;
 
 /**
  */
@@ -27,12 +31,41 @@ public class ClassWicketIdReferenceProvider extends PsiReferenceProvider {
     @NotNull
     @Override
     public PsiReference[] getReferencesByElement(@NotNull PsiElement element, @NotNull ProcessingContext context) {
-        PsiExpressionList expressionList = (PsiExpressionList) element.getParent();
+        PsiClass wicketClass = getWicketClass((PsiLiteralExpression) element);
+        if (wicketClass != null) {
+            return new PsiReference[] {new ClassWicketIdReference((PsiLiteralExpression) element, wicketClass)};
+        }
+        return PsiReference.EMPTY_ARRAY;
+    }
+
+    /**
+     * @param wicketIdExpression    expression (literal or constant) inside the argument list of a new expression or
+     *                              of a component factory method call ex: 'createNameField("name")'
+     * @return                      the Page/Panel class with markup the wicketId belongs to (the markupProvider for
+     *                              components of a fragment in the markup of another class) or null if the
+     *                              expression is not the wicketId of a new wicket component
+     */
+    @Nullable
+    public static PsiClass getWicketClass(@NotNull PsiExpression wicketIdExpression) {
+        PsiElement element = wicketIdExpression.getParent();
+        if (!(element instanceof PsiExpressionList)) {
+            return null;
+        }
+        PsiExpressionList expressionList = (PsiExpressionList) element;
+        PsiElement parent = expressionList.getParent(); // can be PsiNewExpression, PsiAnonymousClass or PsiMethodCallExpression
+        if (parent instanceof PsiMethodCallExpression) {
+            return getFactoryWicketClass((PsiMethodCallExpression) parent, expressionList, wicketIdExpression);
+        }
         PsiExpression[] expressions = expressionList.getExpressions();
-        if (expressions.length > 0 && expressions[0].equals(element)) {
-            if (WicketForgeFacet.hasFacetOrIsFromLibrary(element)) {
-                PsiElement parent = expressionList.getParent(); // can be PsiNewExpression or PsiAnonymousClass
-                PsiNewExpression newExpression = (PsiNewExpression) (parent instanceof PsiNewExpression ? parent : parent.getParent());
+        if (expressions.length > 0 && expressions[0].equals(wicketIdExpression)) {
+            if (WicketForgeFacet.hasFacetOrIsFromLibrary(wicketIdExpression)) {
+                if (parent instanceof PsiAnonymousClass) {
+                    parent = parent.getParent();
+                }
+                if (!(parent instanceof PsiNewExpression)) {
+                    return null;
+                }
+                PsiNewExpression newExpression = (PsiNewExpression) parent;
                 PsiJavaCodeReferenceElement clazzReference = newExpression.getClassOrAnonymousClassReference();
                 if (clazzReference != null) {
                     PsiElement clazzElement = clazzReference.resolve();
@@ -40,14 +73,46 @@ public class ClassWicketIdReferenceProvider extends PsiReferenceProvider {
                         PsiClass psiClass = (PsiClass) clazzElement;
                         if (WicketForgeUtil.isWicketComponent(psiClass) && !WicketForgeUtil.isWicketPage(psiClass)) {
                             PsiClass wicketClass = WicketForgeUtil.getParentWicketClass(newExpression);
-                            if (wicketClass != null && WicketForgeUtil.getMarkupFile(wicketClass) != null) {
-                                return new PsiReference[] {new ClassWicketIdReference((PsiLiteralExpression) element, wicketClass)};
+                            if (wicketClass != null && !WicketForgeUtil.getMarkupFiles(wicketClass).isEmpty()) {
+                                return getMarkupClass(wicketClass, wicketIdExpression);
                             }
                         }
                     }
                 }
             }
         }
-        return PsiReference.EMPTY_ARRAY;
+        return null;
+    }
+
+    /**
+     * Argument of a component factory method call, see {@link WicketClassHierarchy#getFactoryComponentClass(PsiMethodCallExpression, int)}
+     */
+    @Nullable
+    private static PsiClass getFactoryWicketClass(@NotNull PsiMethodCallExpression callExpression, @NotNull PsiExpressionList expressionList,
+                                                  @NotNull PsiExpression wicketIdExpression) {
+        if (!WicketForgeFacet.hasFacetOrIsFromLibrary(wicketIdExpression)) {
+            return null;
+        }
+        // wicket class with markup first, so we only resolve the method of candidates (resolve is expensive)
+        PsiClass wicketClass = WicketForgeUtil.getParentWicketClass(callExpression);
+        if (wicketClass == null || WicketForgeUtil.getMarkupFiles(wicketClass).isEmpty()) {
+            return null;
+        }
+        int argumentIndex = Arrays.asList(expressionList.getExpressions()).indexOf(wicketIdExpression);
+        PsiClass componentClass = argumentIndex < 0 ? null : WicketClassHierarchy.getFactoryComponentClass(callExpression, argumentIndex);
+        if (componentClass != null && WicketForgeUtil.isWicketComponent(componentClass) && !WicketForgeUtil.isWicketPage(componentClass)) {
+            return getMarkupClass(wicketClass, wicketIdExpression);
+        }
+        return null;
+    }
+
+    /**
+     * @return markupProvider if the wicketId is part of a fragment in its markup (see
+     *         {@link WicketClassHierarchy#getMarkupProviderOf(PsiExpression)}), else wicketClass
+     */
+    @NotNull
+    private static PsiClass getMarkupClass(@NotNull PsiClass wicketClass, @NotNull PsiExpression wicketIdExpression) {
+        PsiClass markupProvider = WicketClassHierarchy.create(wicketClass).getMarkupProviderOf(wicketIdExpression);
+        return markupProvider != null && !WicketForgeUtil.getMarkupFiles(markupProvider).isEmpty() ? markupProvider : wicketClass;
     }
 }
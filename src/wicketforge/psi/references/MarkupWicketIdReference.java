@@ -23,6 +23,7 @@ import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.SmartList;
 import org.jetbrains.annotations.NotNull;
 import wicketforge.psi.hierarchy.ClassItem;
+import wicketforge.psi.hierarchy.CompactHierarchy;
 import wicketforge.psi.hierarchy.WicketClassHierarchy;
 import wicketforge.psi.hierarchy.WicketMarkupHierarchy;
 
@@ -53,6 +54,13 @@ public class MarkupWicketIdReference implements PsiReference, PsiPolyVariantRefe
                 for (ClassItem.NewComponentReference newComponentReference : item.getReferences()) {
                     list.add(new PsiElementResolveResult(newComponentReference.getWicketIdExpression()));
                 }
+                for (int i = 0; i < item.getLibraryReferenceCount(); i++) {
+                    // composed from a library hierarchy
+                    PsiElement element = CompactHierarchy.findReferenceElement(attributeValue.getManager(), item.getLibraryReferenceUrl(i), item.getLibraryReferenceOffset(i));
+                    if (element != null) {
+                        list.add(new PsiElementResolveResult(element));
+                    }
+                }
                 if (!list.isEmpty()) {
                     return list.toArray(new ResolveResult[list.size()]);
                 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010 The WicketForge-Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wicketforge.psi.references;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.SearchScope;
+import com.intellij.psi.search.searches.ReferencesSearch;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.psi.xml.XmlAttribute;
+import com.intellij.psi.xml.XmlAttributeValue;
+import com.intellij.util.Processor;
+import com.intellij.util.QueryExecutor;
+import org.jetbrains.annotations.NotNull;
+import wicketforge.Constants;
+import wicketforge.indexing.WicketComponentIndex;
+import wicketforge.indexing.WicketMarkupIndex;
+import wicketforge.psi.hierarchy.WicketClassHierarchy;
+
+import java.util.List;
+
+/**
+ * Finds the wicket:id references (find usages, rename) of a wicketId from the index instead of a text search.
+ * <p/>
+ * Java wicketId -> markup: candidates from {@link WicketMarkupIndex}, markup wicket:id -> java: candidates from
+ * {@link WicketComponentIndex}. Only the PSI of the candidate files is loaded.
+ */
+public class WicketIdReferencesSearcher implements QueryExecutor<PsiReference, ReferencesSearch.SearchParameters> {
+    public boolean execute(final ReferencesSearch.SearchParameters queryParameters, final Processor<PsiReference> consumer) {
+        return ApplicationManager.getApplication().runReadAction(new Computable<Boolean>() {
+            public Boolean compute() {
+                SearchScope scope = queryParameters.getEffectiveSearchScope();
+                if (!(scope instanceof GlobalSearchScope)) {
+                    return true; // local scope -> files are searched anyway
+                }
+                PsiElement element = queryParameters.getElementToSearch();
+                if (element instanceof PsiLiteralExpression) {
+                    return processMarkupReferences((PsiLiteralExpression) element, (GlobalSearchScope) scope, consumer);
+                }
+                if (element instanceof XmlAttributeValue) {
+                    return processClassReferences((XmlAttributeValue) element, (GlobalSearchScope) scope, consumer);
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * @return false if consumer stopped processing
+     */
+    private static boolean processMarkupReferences(@NotNull PsiLiteralExpression wicketIdExpression, @NotNull GlobalSearchScope scope,
+                                                   @NotNull Processor<PsiReference> consumer) {
+        Object value = wicketIdExpression.getValue();
+        if (!(value instanceof String)) {
+            return true;
+        }
+        PsiClass wicketClass = ClassWicketIdReferenceProvider.getWicketClass(wicketIdExpression);
+        if (wicketClass == null) {
+            return true;
+        }
+        String wicketId = (String) value;
+        String path = WicketClassHierarchy.findPathOf(wicketClass, wicketIdExpression, false, false);
+        PsiManager psiManager = wicketIdExpression.getManager();
+        for (VirtualFile virtualFile : WicketMarkupIndex.getFilesByWicketId(wicketId, scope)) {
+            PsiFile psiFile = psiManager.findFile(virtualFile);
+            if (psiFile == null) {
+                continue;
+            }
+            // exact path if markup has it, else all ids (ex markup inheritance)
+            List<Integer> offsets = path == null ? null : WicketMarkupIndex.getOffsets(path, virtualFile, scope);
+            if (offsets == null || offsets.isEmpty()) {
+                offsets = WicketMarkupIndex.getOffsets(wicketId, virtualFile, scope);
+            }
+            for (Integer offset : offsets) {
+                XmlAttributeValue attributeValue = PsiTreeUtil.getParentOfType(psiFile.findElementAt(offset), XmlAttributeValue.class, false);
+                if (attributeValue != null) {
+                    for (PsiReference reference : attributeValue.getReferences()) {
+                        if (reference instanceof MarkupWicketIdReference && reference.isReferenceTo(wicketIdExpression) && !consumer.process(reference)) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if consumer stopped processing
+     */
+    private static boolean processClassReferences(@NotNull XmlAttributeValue attributeValue, @NotNull GlobalSearchScope scope,
+                                                  @NotNull Processor<PsiReference> consumer) {
+        PsiElement parent = attributeValue.getParent();
+        if (!(parent instanceof XmlAttribute) || !Constants.WICKET_ID.equals(((XmlAttribute) parent).getName())) {
+            return true;
+        }
+        String wicketId = attributeValue.getValue();
+        if (wicketId == null || wicketId.length() == 0) {
+            return true;
+        }
+        for (PsiLiteralExpression wicketIdExpression : WicketComponentIndex.findWicketIdExpressions(attributeValue.getProject(), wicketId, scope)) {
+            for (PsiReference reference : wicketIdExpression.getReferences()) {
+                if (reference instanceof ClassWicketIdReference && reference.isReferenceTo(attributeValue) && !consumer.process(reference)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -38,7 +38,7 @@ public class WicketClassVisitor extends JavaRecursiveElementVisitor {
 
     @Override
     public void visitClass(PsiClass aClass) {
-        if (psiClass != null && !aClass.equals(psiClass) && WicketForgeUtil.isWicketComponentWithAssociatedMarkup(aClass)) {
+        if (psiClass != null && !aClass.equals(psiClass) && WicketForgeUtil.isWicketComponentWithAssociatedMarkup(aClass) && !WicketForgeUtil.isAnonymousBorder(aClass)) {
             // we do not visit inner classes that have own markup
             return;
         }
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2010 The WicketForge-Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wicketforge.benchmark;
+
+import com.intellij.facet.FacetManager;
+import com.intellij.facet.FacetTypeRegistry;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleType;
+import com.intellij.openapi.projectRoots.Sdk;
+import com.intellij.openapi.roots.ContentEntry;
+import com.intellij.openapi.roots.ModifiableRootModel;
+import com.intellij.psi.*;
+import com.intellij.psi.xml.XmlAttribute;
+import com.intellij.psi.xml.XmlAttributeValue;
+import com.intellij.psi.xml.XmlFile;
+import com.intellij.testFramework.LightProjectDescriptor;
+import com.intellij.testFramework.fixtures.LightCodeInsightFixtureTestCase;
+import wicketforge.Constants;
+import wicketforge.facet.WicketForgeFacet;
+import wicketforge.facet.WicketForgeFacetType;
+import wicketforge.inspection.HtmlIdInspection;
+import wicketforge.inspection.JavaIdInspection;
+import wicketforge.psi.WicketResolveSnapshot;
+import wicketforge.psi.hierarchy.WicketClassHierarchy;
+import wicketforge.psi.hierarchy.WicketForgeHierarchyCache;
+import wicketforge.psi.hierarchy.WicketMarkupHierarchy;
+import wicketforge.psi.references.ClassWicketIdReference;
+import wicketforge.psi.references.MarkupWicketIdReference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmark of hierarchy building, path lookup, wicketId resolution and highlighting (incl. inspections) on
+ * synthetic pages with markup.
+ * <p/>
+ * Run like any plugin test (testSrc as test source root, IDEA test framework on the classpath). Size is configurable
+ * with system properties:
+ * <ul>
+ * <li>wicketforge.benchmark.pages (50): number of page classes with markup</li>
+ * <li>wicketforge.benchmark.components (100): components per page</li>
+ * <li>wicketforge.benchmark.depth (4): nesting depth of the containers</li>
+ * <li>wicketforge.benchmark.anonymous (10): anonymous containers per page</li>
+ * <li>wicketforge.benchmark.repeaters (5): ListViews with populateItem per page</li>
+ * <li>wicketforge.benchmark.runs (5): measured runs, the median and min are reported</li>
+ * </ul>
+ * Every measurement is reported 'cold' (after an edit of all files, caches are outdated) and 'warm' (cached).
+ */
+public class WicketForgeBenchmark extends LightCodeInsightFixtureTestCase {
+    private static final int PAGES = Integer.getInteger("wicketforge.benchmark.pages", 50);
+    private static final int COMPONENTS = Integer.getInteger("wicketforge.benchmark.components", 100);
+    private static final int DEPTH = Integer.getInteger("wicketforge.benchmark.depth", 4);
+    private static final int ANONYMOUS = Integer.getInteger("wicketforge.benchmark.anonymous", 10);
+    private static final int REPEATERS = Integer.getInteger("wicketforge.benchmark.repeaters", 5);
+    private static final int RUNS = Integer.getInteger("wicketforge.benchmark.runs", 5);
+    private static final int HIGHLIGHTED_PAGES = 10;
+
+    private static final LightProjectDescriptor DESCRIPTOR = new LightProjectDescriptor() {
+        public ModuleType getModuleType() {
+            return JAVA_LATEST.getModuleType();
+        }
+
+        public Sdk getSdk() {
+            return JAVA_LATEST.getSdk();
+        }
+
+        public void configureModule(Module module, ModifiableRootModel model, ContentEntry contentEntry) {
+            JAVA_LATEST.configureModule(module, model, contentEntry);
+            if (WicketForgeFacet.getInstance(module) == null) {
+                FacetManager.getInstance(module).addFacet(FacetTypeRegistry.getInstance().findFacetType(WicketForgeFacetType.ID), "Wicket", null);
+            }
+        }
+    };
+
+    private final List<PsiJavaFile> javaFiles = new ArrayList<PsiJavaFile>();
+    private final List<XmlFile> markupFiles = new ArrayList<XmlFile>();
+
+    @Override
+    protected LightProjectDescriptor getProjectDescriptor() {
+        return DESCRIPTOR;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        addWicketStubs();
+        for (int i = 0; i < PAGES; i++) {
+            javaFiles.add((PsiJavaFile) myFixture.addFileToProject("bench/Page" + i + ".java", createPageClass(i)));
+            markupFiles.add((XmlFile) myFixture.addFileToProject("bench/Page" + i + ".html", createPageMarkup()));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        javaFiles.clear();
+        markupFiles.clear();
+        super.tearDown();
+    }
+
+    public void testClassHierarchy() {
+        measure("WicketClassHierarchy.create", new Runnable() {
+            public void run() {
+                for (PsiJavaFile javaFile : javaFiles) {
+                    WicketClassHierarchy.create(javaFile.getClasses()[0]);
+                }
+            }
+        });
+    }
+
+    public void testMarkupHierarchy() {
+        measure("WicketMarkupHierarchy.create", new Runnable() {
+            public void run() {
+                for (XmlFile markupFile : markupFiles) {
+                    WicketMarkupHierarchy.create(markupFile);
+                }
+            }
+        });
+    }
+
+    public void testFindPathOf() {
+        measure("WicketClassHierarchy.findPathOf", new Runnable() {
+            public void run() {
+                for (PsiJavaFile javaFile : javaFiles) {
+                    PsiClass psiClass = javaFile.getClasses()[0];
+                    for (PsiLiteralExpression wicketIdExpression : findWicketIdExpressions(javaFile)) {
+                        WicketClassHierarchy.findPathOf(psiClass, wicketIdExpression, false, false);
+                    }
+                }
+            }
+        });
+    }
+
+    public void testResolveReferences() {
+        measure("ClassWicketIdReference/MarkupWicketIdReference.multiResolve", new Runnable() {
+            public void run() {
+                for (PsiJavaFile javaFile : javaFiles) {
+                    for (PsiLiteralExpression wicketIdExpression : findWicketIdExpressions(javaFile)) {
+                        for (PsiReference reference : wicketIdExpression.getReferences()) {
+                            if (reference instanceof ClassWicketIdReference) {
+                                ((ClassWicketIdReference) reference).multiResolve(false);
+                            }
+                        }
+                    }
+                }
+                for (XmlFile markupFile : markupFiles) {
+                    for (XmlAttributeValue attributeValue : findWicketIdAttributeValues(markupFile)) {
+                        for (PsiReference reference : attributeValue.getReferences()) {
+                            if (reference instanceof MarkupWicketIdReference) {
+                                ((MarkupWicketIdReference) reference).multiResolve(false);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    public void testResolveSnapshot() {
+        measure("WicketResolveSnapshot.resolve", new Runnable() {
+            public void run() {
+                for (PsiJavaFile javaFile : javaFiles) {
+                    WicketResolveSnapshot snapshot = WicketResolveSnapshot.getInstance(javaFile);
+                    for (PsiLiteralExpression wicketIdExpression : findWicketIdExpressions(javaFile)) {
+                        snapshot.resolve(wicketIdExpression);
+                    }
+                }
+                for (XmlFile markupFile : markupFiles) {
+                    WicketResolveSnapshot snapshot = WicketResolveSnapshot.getInstance(markupFile);
+                    for (XmlAttributeValue attributeValue : findWicketIdAttributeValues(markupFile)) {
+                        snapshot.resolve(attributeValue);
+                    }
+                }
+            }
+        });
+    }
+
+    public void testHighlighting() {
+        myFixture.enableInspections(new JavaIdInspection(), new HtmlIdInspection());
+        final int pages = Math.min(PAGES, HIGHLIGHTED_PAGES);
+        measure("highlighting incl. inspections of " + pages + " pages and markup", new Runnable() {
+            public void run() {
+                for (int i = 0; i < pages; i++) {
+                    myFixture.configureFromExistingVirtualFile(javaFiles.get(i).getVirtualFile());
+                    myFixture.doHighlighting();
+                    myFixture.configureFromExistingVirtualFile(markupFiles.get(i).getVirtualFile());
+                    myFixture.doHighlighting();
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs task cold (after all files are edited) and warm, reports median and min of both.
+     */
+    private void measure(String name, Runnable task) {
+        task.run(); // warm up jit and resolve of the stubs
+        long[] cold = new long[RUNS];
+        long[] warm = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            touchFiles();
+            WicketForgeHierarchyCache.getInstance(getProject()).clear();
+            cold[run] = time(task);
+            warm[run] = time(task);
+        }
+        System.out.println("wicketforge benchmark: " + name + " (" + PAGES + " pages, " + COMPONENTS + " components, depth " + DEPTH + ", "
+                + ANONYMOUS + " anonymous, " + REPEATERS + " repeaters): cold " + format(cold) + ", warm " + format(warm));
+    }
+
+    private static long time(Runnable task) {
+        long start = System.nanoTime();
+        task.run();
+        return System.nanoTime() - start;
+    }
+
+    private static String format(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return "median " + sorted[sorted.length / 2] / 1000000 + "ms, min " + sorted[0] / 1000000 + "ms";
+    }
+
+    /**
+     * Appends a space to all files, all cached hierarchies and resolve results are outdated afterwards.
+     */
+    private void touchFiles() {
+        new WriteCommandAction.Simple(getProject()) {
+            @Override
+            protected void run() throws Throwable {
+                PsiDocumentManager documentManager = PsiDocumentManager.getInstance(getProject());
+                List<PsiFile> files = new ArrayList<PsiFile>(javaFiles);
+                files.addAll(markupFiles);
+                for (PsiFile file : files) {
+                    Document document = documentManager.getDocument(file);
+                    if (document != null) {
+                        document.insertString(document.getTextLength(), " ");
+                    }
+                }
+                documentManager.commitAllDocuments();
+            }
+        }.execute();
+    }
+
+    private static List<PsiLiteralExpression> findWicketIdExpressions(PsiJavaFile javaFile) {
+        final List<PsiLiteralExpression> result = new ArrayList<PsiLiteralExpression>();
+        javaFile.accept(new JavaRecursiveElementWalkingVisitor() {
+            @Override
+            public void visitLiteralExpression(PsiLiteralExpression expression) {
+                if (expression.getValue() instanceof String) {
+                    result.add(expression);
+                }
+            }
+        });
+        return result;
+    }
+
+    private static List<XmlAttributeValue> findWicketIdAttributeValues(XmlFile markupFile) {
+        final List<XmlAttributeValue> result = new ArrayList<XmlAttributeValue>();
+        markupFile.accept(new XmlRecursiveElementVisitor() {
+            @Override
+            public void visitXmlAttribute(XmlAttribute attribute) {
+                if (Constants.WICKET_ID.equals(attribute.getName()) && attribute.getValueElement() != null) {
+                    result.add(attribute.getValueElement());
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Page with COMPONENTS components: chains of DEPTH nested containers with a label each, ANONYMOUS anonymous
+     * containers and REPEATERS ListViews adding a label in populateItem.
+     */
+    private static String createPageClass(int index) {
+        StringBuilder sb = new StringBuilder()
+                .append("package bench;\n")
+                .append("import org.apache.wicket.markup.html.WebMarkupContainer;\n")
+                .append("import org.apache.wicket.markup.html.WebPage;\n")
+                .append("import org.apache.wicket.markup.html.basic.Label;\n")
+                .append("import org.apache.wicket.markup.html.list.ListItem;\n")
+                .append("import org.apache.wicket.markup.html.list.ListView;\n")
+                .append("public class Page").append(index).append(" extends WebPage {\n")
+                .append("    public Page").append(index).append("() {\n");
+        for (int chain = 0; chain < getChainCount(); chain++) {
+            String parent = null;
+            for (int level = 0; level < DEPTH; level++) {
+                String container = "c" + chain + "_" + level;
+                sb.append("        WebMarkupContainer ").append(container).append(" = new WebMarkupContainer(\"").append(container).append("\");\n");
+                sb.append("        ").append(parent == null ? "" : parent + ".").append("add(").append(container).append(");\n");
+                sb.append("        ").append(container).append(".add(new Label(\"label\"));\n");
+                parent = container;
+            }
+        }
+        for (int i = 0; i < ANONYMOUS; i++) {
+            sb.append("        add(new WebMarkupContainer(\"anonymous").append(i).append("\") {\n")
+                    .append("            @Override\n")
+                    .append("            public boolean isVisible() {\n")
+                    .append("                return true;\n")
+                    .append("            }\n")
+                    .append("        });\n");
+        }
+        for (int i = 0; i < REPEATERS; i++) {
+            sb.append("        add(new ListView<String>(\"list").append(i).append("\") {\n")
+                    .append("            @Override\n")
+                    .append("            protected void populateItem(ListItem<String> item) {\n")
+                    .append("                item.add(new Label(\"item\"));\n")
+                    .append("            }\n")
+                    .append("        });\n");
+        }
+        return sb.append("    }\n").append("}\n").toString();
+    }
+
+    private static String createPageMarkup() {
+        StringBuilder sb = new StringBuilder("<html xmlns:wicket>\n<body>\n");
+        for (int chain = 0; chain < getChainCount(); chain++) {
+            for (int level = 0; level < DEPTH; level++) {
+                sb.append("<div wicket:id=\"c").append(chain).append('_').append(level).append("\"><span wicket:id=\"label\"></span>\n");
+            }
+            for (int level = 0; level < DEPTH; level++) {
+                sb.append("</div>\n");
+            }
+        }
+        for (int i = 0; i < ANONYMOUS; i++) {
+            sb.append("<div wicket:id=\"anonymous").append(i).append("\"></div>\n");
+        }
+        for (int i = 0; i < REPEATERS; i++) {
+            sb.append("<ul><li wicket:id=\"list").append(i).append("\"><span wicket:id=\"item\"></span></li></ul>\n");
+        }
+        return sb.append("</body>\n</html>\n").toString();
+    }
+
+    /**
+     * @return number of container chains, each chain has 2 * DEPTH components (container and label per level)
+     */
+    private static int getChainCount() {
+        return Math.max(1, (COMPONENTS - ANONYMOUS - 2 * REPEATERS) / (2 * Math.max(1, DEPTH)));
+    }
+
+    /**
+     * Minimal wicket api, enough for the hierarchies (the plugin only needs the class hierarchy).
+     */
+    private void addWicketStubs() {
+        myFixture.addClass("package org.apache.wicket.model; public interface IModel<T> { T getObject(); }");
+        myFixture.addClass("package org.apache.wicket; public abstract class Component {\n" +
+                "  public Component(String id) {}\n" +
+                "  public Component(String id, org.apache.wicket.model.IModel<?> model) {}\n" +
+                "  public boolean isVisible() { return true; }\n" +
+                "}");
+        myFixture.addClass("package org.apache.wicket; public abstract class MarkupContainer extends Component {\n" +
+                "  public MarkupContainer(String id) { super(id); }\n" +
+                "  public MarkupContainer add(Component... children) { return this; }\n" +
+                "}");
+        myFixture.addClass("package org.apache.wicket; public abstract class Page extends MarkupContainer { public Page() { super(null); } }");
+        myFixture.addClass("package org.apache.wicket.markup.html; public class WebPage extends org.apache.wicket.Page {}");
+        myFixture.addClass("package org.apache.wicket.markup.html; public class WebMarkupContainer extends org.apache.wicket.MarkupContainer {\n" +
+                "  public WebMarkupContainer(String id) { super(id); }\n" +
+                "}");
+        myFixture.addClass("package org.apache.wicket.markup.html.panel; public class Panel extends org.apache.wicket.markup.html.WebMarkupContainer {\n" +
+                "  public Panel(String id) { super(id); }\n" +
+                "}");
+        myFixture.addClass("package org.apache.wicket.markup.html.basic; public class Label extends org.apache.wicket.Component {\n" +
+                "  public Label(String id) { super(id); }\n" +
+                "}");
+        myFixture.addClass("package org.apache.wicket.markup.html.list; public class ListItem<T> extends org.apache.wicket.markup.html.WebMarkupContainer {\n" +
+                "  public ListItem(String id) { super(id); }\n" +
+                "}");
+        myFixture.addClass("package org.apache.wicket.markup.html.list; public abstract class ListView<T> extends org.apache.wicket.markup.html.WebMarkupContainer {\n" +
+                "  public ListView(String id) { super(id); }\n" +
+                "  protected abstract void populateItem(ListItem<T> item);\n" +
+                "}");
+    }
+}